@@ -2,20 +2,25 @@ package net.bplaced.abzzezz.network;
 
 import net.bplaced.abzzezz.network.components.*;
 import net.bplaced.abzzezz.util.TrainData;
+import net.bplaced.abzzezz.util.data.DataLoader;
 import net.bplaced.abzzezz.util.image.ImageLoader;
 import net.bplaced.abzzezz.util.image.ImageUtil;
 import net.bplaced.abzzezz.util.math.MathUtil;
 import net.bplaced.abzzezz.util.math.matrix.Matrix;
+import net.bplaced.abzzezz.util.math.matrix.MatrixUtil;
+import net.bplaced.abzzezz.util.math.tensor.Init;
+import net.bplaced.abzzezz.util.math.tensor.Workspace;
 import net.bplaced.abzzezz.util.math.vector.Vec;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import static net.bplaced.abzzezz.util.Const.*;
@@ -30,34 +35,110 @@ public class CNN {
     final List<PoolingLayer> poolingLayers = new ArrayList<>();
     final List<FullyConnectedLayer> fullyConnectedLayers = new ArrayList<>();
 
+    /**
+     * The network's layers and parameters are shared by all threads, every thread passes its own {@link Context}
+     */
+    private final ThreadLocal<Context> contexts = ThreadLocal.withInitial(this::newContext);
+
+    private int batchSize = BATCH_SIZE;
+    /**
+     * The number of training steps performed, by any thread
+     */
+    private final AtomicLong iteration = new AtomicLong();
+
     public CNN() {
-        convolutionLayers.add(new ConvolutionLayer());
-        kernelList.add(initKernels(5, 9));
-        poolingLayers.add(new PoolingLayer());
+        this(new int[]{5, 10}, new int[]{9, 5});
+    }
 
-        convolutionLayers.add(new ConvolutionLayer());
-        kernelList.add(initKernels(10, 5));
-        poolingLayers.add(new PoolingLayer());
-        /*
-        convolutionLayers.add(new ConvolutionLayer());
-        kernelList.add(initFilters(5, 3));
-        poolingLayers.add(new PoolingLayer());
+    /**
+     * Builds a network with one convolution and one pooling layer per entry of the given arrays.
+     * Every convolution layer's filters see all channels of the previous layer, so the number of maps only depends on
+     * the last layer's filters, not on the depth.
+     * The convolution engine of each layer is picked by a cost model from the layer's shape
+     *
+     * @param kernelAmounts the number of filters, i.e. output channels, per convolution layer
+     * @param kernelSizes   the kernels' size ⨍ per convolution layer
+     */
+    public CNN(final int[] kernelAmounts, final int[] kernelSizes) {
+        this(kernelAmounts, kernelSizes, defaultPooling(kernelAmounts.length), true);
+    }
 
-         */
+    /**
+     * Builds a network like {@link #CNN(int[], int[])} with the given pooling layers, e.g. with global average
+     * pooling after the last convolution, which passes only one feature per map to the NN instead of a whole map
+     *
+     * @param kernelAmounts the number of filters, i.e. output channels, per convolution layer
+     * @param kernelSizes   the kernels' size ⨍ per convolution layer
+     * @param pooling       the pooling layer following each convolution layer
+     */
+    public CNN(final int[] kernelAmounts, final int[] kernelSizes, final PoolingLayer @NotNull [] pooling) {
+        this(kernelAmounts, kernelSizes, pooling, true);
+    }
 
+    /**
+     * @param initialize if false, all parameters are left at zero, e.g. to be overwritten by a {@link Checkpoint}
+     */
+    CNN(final int[] kernelAmounts, final int[] kernelSizes, final PoolingLayer[] pooling, final boolean initialize) {
+        if (kernelAmounts.length != kernelSizes.length || kernelAmounts.length != pooling.length) {
+            throw new IllegalArgumentException("Every convolution layer needs a kernel amount, a kernel size and a pooling layer");
+        }
         /*
-        A 64*64 sized image produces, after the given convolutions 12.800 Inputs for the NN,
-        for the input image is 64*64, which is then downscaled to 16*16 for second convolution
-        the number of layers goes up, from 1 to 5 and then to 50.
-        In total this means: 16*16*50 = 12800 inputs for the NN.
+        Every convolution keeps the map size, by default every pooling layer halves it. Every filter holds one kernel
+        per channel of its input and sums over them, so a 64*64 gray image convolved with 5, then 10 filters produces
+        16*16*10 = 2560 inputs for the NN
          */
-        fullyConnectedLayers.add(new FullyConnectedLayer(FULLY_CONNECTED_NETWORK_WIDTH, 12_800, MathUtil.ActivationFunction.RELU));
+        int mapSize = IMAGE_SIZE;
+        //The images are gray, one channel
+        int channels = 1;
+        for (int j = 0; j < kernelAmounts.length; j++) {
+            if (kernelAmounts[j] < 1) {
+                throw new IllegalArgumentException("Every convolution layer needs at least one filter");
+            }
+            final int size = kernelSizes[j];
+            convolutionLayers.add(new ConvolutionLayer());
+            //Ordered [filter][channel], scaled by the filter's number of taps so that the maps do not grow with it
+            kernelList.add(initKernels(kernelAmounts[j] * channels, size, initialize ? Init.he(channels * size * size) : Init.UNINITIALIZED));
+            poolingLayers.add(pooling[j]);
+
+            try {
+                mapSize = pooling[j].outputSize(mapSize);
+            } catch (final IllegalArgumentException e) {
+                throw new IllegalArgumentException("Pooling layer " + j + " does not fit its input: " + e.getMessage(), e);
+            }
+            channels = kernelAmounts[j];
+        }
+
+        fullyConnectedLayers.add(new FullyConnectedLayer(FULLY_CONNECTED_NETWORK_WIDTH, mapSize * mapSize * channels, MathUtil.ActivationFunction.RELU, initialize));
 
         for (int j = 0; j < FULLY_CONNECTED_NETWORK_DEPTH; j++) {
-            fullyConnectedLayers.add(new FullyConnectedLayer(FULLY_CONNECTED_NETWORK_WIDTH, FULLY_CONNECTED_NETWORK_WIDTH, MathUtil.ActivationFunction.RELU));
+            fullyConnectedLayers.add(new FullyConnectedLayer(FULLY_CONNECTED_NETWORK_WIDTH, FULLY_CONNECTED_NETWORK_WIDTH, MathUtil.ActivationFunction.RELU, initialize));
+        }
+        fullyConnectedLayers.add(new FullyConnectedLayer(1, FULLY_CONNECTED_NETWORK_WIDTH, MathUtil.ActivationFunction.SOFTMAX, initialize));
+
+    }
+
+    /**
+     * @return 2x2 max-pooling with a stride of 2 after every convolution layer
+     */
+    private static PoolingLayer[] defaultPooling(final int layers) {
+        final PoolingLayer[] pooling = new PoolingLayer[layers];
+        for (int j = 0; j < layers; j++) {
+            pooling[j] = new PoolingLayer();
         }
-        fullyConnectedLayers.add(new FullyConnectedLayer(1, FULLY_CONNECTED_NETWORK_WIDTH, MathUtil.ActivationFunction.SOFTMAX));
+        return pooling;
+    }
 
+    /**
+     * @return the number of filters, i.e. output channels, per convolution layer
+     */
+    int[] getKernelAmounts() {
+        final int[] kernelAmounts = new int[kernelList.size()];
+        int channels = 1;
+        for (int j = 0; j < kernelAmounts.length; j++) {
+            kernelAmounts[j] = kernelList.get(j).length / channels;
+            channels = kernelAmounts[j];
+        }
+        return kernelAmounts;
     }
 
     public void test(final int tests) {
@@ -71,14 +152,12 @@ public class CNN {
             try {
                 final TrainData trainingData = ImageLoader.getRandomTrainingData();
 
-                final Vec poolingOutputsVec = convolveInput(trainingData);
+                final Context context = context();
+                final Matrix features = convolveInput(context, new Matrix[]{trainingData.getInput()}, false);
 
-                System.out.printf("Feeding %d inputs to the network%n", poolingOutputsVec.length());
+                System.out.printf("Feeding %d inputs to the network%n", features.getCols());
 
-                Vec output = poolingOutputsVec;
-                for (final FullyConnectedLayer fullyConnectedLayer : fullyConnectedLayers) {
-                    output = fullyConnectedLayer.forwardPropagation(output);
-                }
+                final Vec output = feedForward(context, features).rowView(0);
 
                 if (!output.matches(trainingData.getExpectedResult())) {
                     errorCount++;
@@ -97,120 +176,266 @@ public class CNN {
         System.out.println("Accuracy: " + accuracy);
     }
 
-    private Vec convolveInput(final TrainData trainingData) {
-        Matrix[] poolingOutputs = new Matrix[]{trainingData.getInput()};
+    /**
+     * Computes the network's output for a batch of images. Any number of threads may predict at once,
+     * each one with its own context
+     *
+     * @param context the pass's context
+     * @param images  the images
+     * @return the outputs of shape [samples][outputs], valid until the context's next pass
+     */
+    public Matrix predict(final @NotNull Context context, final Matrix @NotNull [] images) {
+        return feedForward(context, convolveInput(context, images, false));
+    }
+
+    /**
+     * Computes the network's output for a batch of images with the calling thread's context
+     *
+     * @see #predict(Context, Matrix[])
+     */
+    public Matrix predict(final Matrix @NotNull [] images) {
+        return predict(context(), images);
+    }
+
+    /**
+     * Convolves and pools a batch of images through all convolution layers.
+     * Every convolution layer is directly followed by its pooling layer, unless the maps are kept for a backward pass
+     * both are computed in one fused pass if the pooling layer supports it
+     *
+     * @param context  the pass's context
+     * @param images   the images
+     * @param training whether the layers keep their maps for a backward pass
+     * @return the flattened features of shape [samples][features], one sample per row, each map after map and row by row
+     */
+    private Matrix convolveInput(final Context context, final Matrix[] images, final boolean training) {
+        Matrix[] poolingOutputs = images;
 
         for (int j = 0; j < convolutionLayers.size(); j++) {
             final ConvolutionLayer convolutionLayer = convolutionLayers.get(j);
             final PoolingLayer poolingLayer = poolingLayers.get(j);
             final Matrix[] kernels = kernelList.get(j);
 
-            //final Matrix[] poolTemp = new Matrix[kernels.length * poolingOutputs.length];
-
+            if (!training && poolingLayer.isFusable()) {
+                poolingOutputs = convolutionLayer.forwardPooled(context.convolution[j], poolingOutputs, images.length, kernels);
+                continue;
+            }
             //For every pooling layer, convolve the input with the kernels and pool the result
-            final Matrix[] convolutionOutput = convolutionLayer.forwardPropagation(poolingOutputs, kernels);
-            //Copy the current pooling output into the temp array from the current index (k*length)
-            //System.arraycopy(poolingOutput, 0, poolTemp, k * poolingOutput.length, poolingOutput.length);
-            poolingOutputs = poolingLayer.forwardPropagation(convolutionOutput);
-        }
-        //Create a vector the size off all matrices
-        final int vectorSize = Arrays.stream(poolingOutputs)
-                .mapToInt(value -> value.getRows() * value.getCols())
-                .sum();
-        //Add every matrix's elements to the vector, thereby flatten the output
-        final Vec poolingOutputsVec = new Vec(vectorSize);
-        for (int j = 0; j < poolingOutputs.length; j++) {
-            final Matrix matrix = poolingOutputs[j];
-            for (int k = 0; k < matrix.getRows(); k++) {
-                for (int l = 0; l < matrix.getCols(); l++) {
-                    poolingOutputsVec.set(j * matrix.getRows() + l, matrix.get(k, l));
+            final Matrix[] convolutionOutput = convolutionLayer.forwardPropagation(context.convolution[j], poolingOutputs, images.length, kernels);
+            poolingOutputs = poolingLayer.forwardPropagation(context.pooling[j], convolutionOutput);
+        }
+        return flatten(poolingOutputs, images.length);
+    }
+
+    /**
+     * Flattens the pooled feature maps, which are ordered [sample][map] and lie back to back in one buffer,
+     * into one row per sample. No values are copied
+     *
+     * @param poolingOutputs the feature maps
+     * @param samples        the number of samples
+     * @return a matrix of shape [samples][features]
+     */
+    private Matrix flatten(final Matrix[] poolingOutputs, final int samples) {
+        final int mapSize = poolingOutputs[0].getRows() * poolingOutputs[0].getCols();
+        return MatrixUtil.asMatrix(poolingOutputs, samples, poolingOutputs.length / samples * mapSize);
+    }
+
+    private Matrix feedForward(final Context context, final Matrix features) {
+        Matrix output = features;
+        for (int j = 0; j < fullyConnectedLayers.size(); j++) {
+            output = fullyConnectedLayers.get(j).forwardPropagation(context.fullyConnected[j], output);
+        }
+        return output;
+    }
+
+    /**
+     * Trains the network with mini-batches of {@link #getBatchSize()} random samples.
+     * The gradients of all samples of a batch are accumulated and applied once per batch
+     *
+     * @param iterations the number of batches
+     */
+    public void train(final int iterations) {
+        train(iterations, null);
+    }
+
+    /**
+     * Trains the network like {@link #train(int)} and lets the checkpointer save it in the background between batches
+     *
+     * @param iterations   the number of batches
+     * @param checkpointer saves the network every few iterations, may be null
+     */
+    public void train(final int iterations, final @Nullable PeriodicCheckpointer checkpointer) {
+        //Batches are decoded on all cores while the network trains on the current one
+        try (DataLoader loader = ImageLoader.createDataLoader(batchSize, PREFETCH_BATCHES, Runtime.getRuntime().availableProcessors(), true)) {
+            for (int i = 0; i < iterations; i++) {
+                System.out.println("Training iteration: " + iteration.get());
+                try {
+                    final TrainData[] batch = loader.next();
+                    System.out.printf("Feeding %d samples to the network%n", batchSize);
+                    computeGradients(batch);
+                    applyGradients(batchSize);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                if (checkpointer != null) {
+                    checkpointer.maybeCheckpoint();
                 }
             }
+            loader.printStats();
         }
-        return poolingOutputsVec;
     }
 
-    public void train(final int iterations) {
+    /**
+     * Runs the forward and backward pass of a batch with the calling thread's context
+     *
+     * @see #computeGradients(Context, TrainData[])
+     */
+    public void computeGradients(final TrainData[] batch) {
+        computeGradients(context(), batch);
+    }
+
+    /**
+     * Runs the forward and backward pass of a batch and adds its gradients to the context's accumulated gradients.
+     * No parameters are changed
+     *
+     * @param context the pass's context
+     * @param batch   the samples
+     */
+    public void computeGradients(final @NotNull Context context, final TrainData[] batch) {
         if (convolutionLayers.size() != poolingLayers.size()) {
             throw new IllegalStateException("Convolution and pooling layers must have the same amount of layers");
         }
+        final Matrix[] images = new Matrix[batch.length];
+        for (int n = 0; n < batch.length; n++) {
+            images[n] = batch[n].getInput();
+        }
+        final Matrix features = convolveInput(context, images, true);
+        final Matrix[] poolingOutputs = context.pooling[poolingLayers.size() - 1].getOutput();
 
-        for (int i = 0; i < iterations; i++) {
-            System.out.println("Training iteration: " + i);
-            try {
-                final TrainData trainingData = ImageLoader.getRandomTrainingData();
-                Matrix[] poolingOutputs = new Matrix[]{trainingData.getInput()};
+        final Matrix output = feedForward(context, features);
 
-                for (int j = 0; j < convolutionLayers.size(); j++) {
-                    final ConvolutionLayer convolutionLayer = convolutionLayers.get(j);
-                    final PoolingLayer poolingLayer = poolingLayers.get(j);
-                    final Matrix[] kernels = kernelList.get(j);
+        //The derivative of the error 0.5 * (o - t)^2 with respect to the output
+        final Matrix error = context.workspace.matrix("error", output.getRows(), output.getCols(), Init.UNINITIALIZED);
+        error.applyToElement((sample, node, value) -> output.get(sample, node) - batch[sample].getExpectedResult().get(node));
 
-                    //final Matrix[] poolTemp = new Matrix[kernels.length * poolingOutputs.length];
+        Matrix delta = error;
+        for (int j = fullyConnectedLayers.size() - 1; j >= 0; j--) {
+            delta = fullyConnectedLayers.get(j).propagateBackwards(context.fullyConnected[j], delta);
+        }
 
-                    //For every pooling layer, convolve the input with the kernels and pool the result
-                    final Matrix[] convolutionOutput = convolutionLayer.forwardPropagation(poolingOutputs, kernels);
-                    //Copy the current pooling output into the temp array from the current index (k*length)
-                    //System.arraycopy(poolingOutput, 0, poolTemp, k * poolingOutput.length, poolingOutput.length);
-                    poolingOutputs = poolingLayer.forwardPropagation(convolutionOutput);
-                }
-                //Create a vector the size off all matrices
-                final int vectorSize = Arrays.stream(poolingOutputs)
-                        .mapToInt(value -> value.getRows() * value.getCols())
-                        .sum();
-                //Add every matrix's elements to the vector, thereby flatten the output
-                final Vec poolingOutputsVec = new Vec(vectorSize);
-                for (int j = 0; j < poolingOutputs.length; j++) {
-                    final Matrix matrix = poolingOutputs[j];
-                    for (int k = 0; k < matrix.getRows(); k++) {
-                        for (int l = 0; l < matrix.getCols(); l++) {
-                            poolingOutputsVec.set(j * matrix.getRows() + l, matrix.get(k, l));
-                        }
-                    }
-                }
+        //Split the error of the features back into maps, the inverse of the flatten
+        Matrix[] errorMatrix = MatrixUtil.asStack(delta, poolingOutputs[0].getRows(), poolingOutputs[0].getCols());
 
-                System.out.printf("Feeding %d inputs to the network%n", poolingOutputsVec.length());
+        for (int j = convolutionLayers.size() - 1; j >= 0; j--) {
+            final PoolingLayer poolingLayer = poolingLayers.get(j);
+            final ConvolutionLayer convolutionLayer = convolutionLayers.get(j);
 
-                Vec output = poolingOutputsVec;
-                for (final FullyConnectedLayer fullyConnectedLayer : fullyConnectedLayers) {
-                    output = fullyConnectedLayer.forwardPropagation(output);
-                }
+            final Matrix[] poolingOutput = poolingLayer.backwardsPropagation(context.pooling[j], errorMatrix);
+            errorMatrix = convolutionLayer.backwardsPropagation(context.convolution[j], poolingOutput);
+        }
+    }
 
-                //Calculate error
-                final Vec expectedOutput = trainingData.getExpectedResult();
+    /**
+     * Applies the calling thread's accumulated gradients
+     *
+     * @see #applyGradients(Context, int)
+     */
+    public void applyGradients(final int samples) {
+        applyGradients(context(), samples);
+    }
 
-                Vec error = new Vec(output.length());
-                error.applyToElement((integer, aDouble) -> MathUtil.computeError(aDouble, expectedOutput.get(integer)));
-                error.applyToElement(MathUtil.ActivationFunction.SOFTMAX::apply);
+    /**
+     * Performs one gradient descent step with the mean of the context's accumulated gradients and resets them
+     *
+     * @param context the context the gradients were accumulated in
+     * @param samples the number of samples the gradients were accumulated over
+     */
+    public void applyGradients(final @NotNull Context context, final int samples) {
+        for (int j = 0; j < fullyConnectedLayers.size(); j++) {
+            fullyConnectedLayers.get(j).applyGradients(context.fullyConnected[j], samples);
+        }
+        for (int j = 0; j < convolutionLayers.size(); j++) {
+            convolutionLayers.get(j).applyGradients(context.convolution[j], samples);
+        }
+        iteration.incrementAndGet();
+    }
 
-                for (int j = fullyConnectedLayers.size() - 1; j >= 0; j--) {
-                    error = fullyConnectedLayers.get(j).propagateBackwards(error);
-                }
+    /**
+     * @return a new context for passes through the network
+     */
+    public Context newContext() {
+        return new Context(this);
+    }
 
-                Matrix[] errorMatrix = new Matrix[poolingOutputs.length];
-                for (int j = 0; j < errorMatrix.length; j++) {
-                    errorMatrix[j] = new Matrix(poolingOutputs[j].getRows(), poolingOutputs[j].getCols());
-                }
-                //Insert the error from the error vector into the error matrix
-                for (int j = 0; j < errorMatrix.length; j++) {
-                    final Matrix matrix = errorMatrix[j];
-                    for (int k = 0; k < matrix.getRows(); k++) {
-                        for (int l = 0; l < matrix.getCols(); l++) {
-                            matrix.set(k, l, error.get(j * matrix.getRows() + l));
-                        }
-                    }
-                }
+    /**
+     * @return the calling thread's context
+     */
+    public Context context() {
+        return contexts.get();
+    }
+
+    /**
+     * @return the number of training steps performed so far, including those before the network was saved
+     */
+    public long getIteration() {
+        return iteration.get();
+    }
 
-                for (int j = convolutionLayers.size() - 1; j >= 0; j--) {
-                    final PoolingLayer poolingLayer = poolingLayers.get(j);
-                    final ConvolutionLayer convolutionLayer = convolutionLayers.get(j);
+    void setIteration(final long iteration) {
+        this.iteration.set(iteration);
+    }
+
+    /**
+     * @return the number of samples per training step
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
 
-                    final Matrix[] poolingOutput = poolingLayer.backwardsPropagation(errorMatrix);
-                    errorMatrix = convolutionLayer.backwardsPropagation(poolingOutput);
+    /**
+     * @param batchSize the number of samples per training step
+     */
+    public void setBatchSize(final int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * The state of passes through the network: one context per layer and the buffers of the loss.
+     * A context serves one pass at a time and must not be shared between threads, the network's parameters are
+     * shared by all of its contexts
+     */
+    public static final class Context {
+
+        private final Workspace workspace = new Workspace();
+
+        private final ConvolutionLayer.Context[] convolution;
+        private final PoolingLayer.Context[] pooling;
+        private final FullyConnectedLayer.Context[] fullyConnected;
+
+        private Context(final CNN network) {
+            this.convolution = network.convolutionLayers.stream().map(ConvolutionLayer::newContext).toArray(ConvolutionLayer.Context[]::new);
+            this.pooling = network.poolingLayers.stream().map(PoolingLayer::newContext).toArray(PoolingLayer.Context[]::new);
+            this.fullyConnected = network.fullyConnectedLayers.stream().map(FullyConnectedLayer::newContext).toArray(FullyConnectedLayer.Context[]::new);
+        }
+
+        /**
+         * @return every accumulated gradient as one matrix each, in the same order for every context of the network
+         */
+        public List<Matrix> getGradients() {
+            final List<Matrix> gradients = new ArrayList<>();
+            for (final ConvolutionLayer.Context context : convolution) {
+                final Matrix[] gradient = context.getGradient();
+                if (gradient == null) {
+                    throw new IllegalStateException("No gradient has been computed yet");
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+                gradients.add(MatrixUtil.asMatrix(gradient, gradient.length, gradient[0].getRows() * gradient[0].getCols()));
+            }
+            for (final FullyConnectedLayer.Context context : fullyConnected) {
+                gradients.add(context.getGradient());
             }
+            return gradients;
         }
     }
 }
@@ -0,0 +1,333 @@
+package net.bplaced.abzzezz.network;
+
+import net.bplaced.abzzezz.network.components.FullyConnectedLayer;
+import net.bplaced.abzzezz.network.components.PoolingLayer;
+import net.bplaced.abzzezz.util.math.matrix.Matrix;
+import net.bplaced.abzzezz.util.math.tensor.Init;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Saves and loads a network's parameters in a versioned binary format.
+ * <p>
+ * All values are little-endian. The file starts with a header:
+ * <pre>
+ * int    magic "CNNC", int version
+ * long   iteration, int batch size
+ * int    convolution layers, per layer: int filters, int kernel size,
+ *        int pooling mode, int pooling window, int pooling stride, int pooling padding
+ * int    tensors, per tensor: short name length, name (UTF-8), int amount, int rows, int cols, long offset
+ * </pre>
+ * followed by one block per tensor at its offset, aligned to {@value #ALIGNMENT} bytes, holding
+ * amount * rows * cols doubles, matrix after matrix and row by row.
+ * <p>
+ * The architecture is rebuilt from the header, the fully connected layers' widths are checked against the tensors'
+ * shapes. Both directions go through a memory-mapped file, the values are transferred in bulk between the mapping
+ * and the layers' arrays, without any intermediate buffer on the heap.
+ * <p>
+ * A checkpoint is written to a temporary file, synced to the disk and renamed over the old checkpoint atomically,
+ * so a crash leaves either the old or the new checkpoint behind, never a partial one.
+ */
+public class Checkpoint {
+
+    private static final int MAGIC = 0x434E4E43;
+    private static final int VERSION = 4;
+    private static final int ALIGNMENT = 64;
+
+    /**
+     * Writes the network's parameters to a file, replacing it if it exists
+     *
+     * @param network the network to save
+     * @param path    the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void save(final @NotNull CNN network, final @NotNull Path path) throws IOException {
+        save(new Snapshot(network, false), path);
+    }
+
+    /**
+     * Writes a snapshot to a file, replacing it if it exists
+     *
+     * @param snapshot the parameters to save
+     * @param path     the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void save(final @NotNull Snapshot snapshot, final @NotNull Path path) throws IOException {
+        final Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        write(snapshot, temporary);
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        //The rename itself is only durable once the directory is synced
+        final Path directory = path.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (final IOException e) {
+            //Not every platform can open directories, the rename is atomic anyway
+        }
+    }
+
+    private static void write(final Snapshot snapshot, final Path path) throws IOException {
+        final List<Tensor> tensors = snapshot.tensors;
+        final ByteBuffer header = header(snapshot);
+        long size = align(header.remaining());
+        for (final Tensor tensor : tensors) {
+            tensor.offset = size;
+            size = align(size + tensor.bytes());
+        }
+        //The offsets are known now, so the header is written again with them
+        final ByteBuffer finalHeader = header(snapshot);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(finalHeader);
+            for (final Tensor tensor : tensors) {
+                final ByteBuffer block = buffer.slice((int) tensor.offset, (int) tensor.bytes()).order(ByteOrder.LITTLE_ENDIAN);
+                for (final Matrix matrix : tensor.matrices) {
+                    block.asDoubleBuffer().put(matrix.getData(), matrix.getOffset(), matrix.getRows() * matrix.getCols());
+                    block.position(block.position() + matrix.getRows() * matrix.getCols() * Double.BYTES);
+                }
+            }
+            buffer.force();
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Reads a network from a file. Training the network continues at the saved iteration with the saved batch size
+     *
+     * @param path the file to read
+     * @return a network with the file's architecture and parameters
+     * @throws IOException if the file cannot be read or is no checkpoint of a compatible network
+     */
+    public static CNN load(final @NotNull Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+                throw new IOException("Not a checkpoint: " + path);
+            }
+            final int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version);
+            }
+            final long iteration = buffer.getLong();
+            final int batchSize = buffer.getInt();
+
+            final int layers = buffer.getInt();
+            final int[] kernelAmounts = new int[layers];
+            final int[] kernelSizes = new int[layers];
+            final PoolingLayer[] pooling = new PoolingLayer[layers];
+            for (int j = 0; j < layers; j++) {
+                kernelAmounts[j] = buffer.getInt();
+                kernelSizes[j] = buffer.getInt();
+                final int mode = buffer.getInt();
+                if (mode < 0 || mode >= PoolingLayer.Mode.values().length) {
+                    throw new IOException("Unknown pooling mode " + mode);
+                }
+                try {
+                    pooling[j] = new PoolingLayer(PoolingLayer.Mode.values()[mode], buffer.getInt(), buffer.getInt(), buffer.getInt());
+                } catch (final IllegalArgumentException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+            final CNN network;
+            try {
+                network = new CNN(kernelAmounts, kernelSizes, pooling, false);
+            } catch (final IllegalArgumentException e) {
+                throw new IOException("Invalid architecture: " + e.getMessage(), e);
+            }
+            network.setIteration(iteration);
+            network.setBatchSize(batchSize);
+            final List<Tensor> tensors = tensors(network, false);
+
+            final int count = buffer.getInt();
+            if (count != tensors.size()) {
+                throw new IOException(String.format("Checkpoint has %d tensors, the network %d", count, tensors.size()));
+            }
+            for (final Tensor tensor : tensors) {
+                final byte[] name = new byte[buffer.getShort()];
+                buffer.get(name);
+                final int amount = buffer.getInt();
+                final int rows = buffer.getInt();
+                final int cols = buffer.getInt();
+                final long offset = buffer.getLong();
+                if (!tensor.name.equals(new String(name, StandardCharsets.UTF_8))
+                        || amount != tensor.matrices.length || rows != tensor.rows() || cols != tensor.cols()) {
+                    throw new IOException(String.format("Tensor %s of shape [%d][%d][%d] does not match the network's %s of shape [%d][%d][%d]",
+                            new String(name, StandardCharsets.UTF_8), amount, rows, cols,
+                            tensor.name, tensor.matrices.length, tensor.rows(), tensor.cols()));
+                }
+                if (offset < 0 || offset + tensor.bytes() > buffer.capacity()) {
+                    throw new IOException("Tensor " + tensor.name + " lies outside of the file");
+                }
+                final ByteBuffer block = buffer.slice((int) offset, (int) tensor.bytes()).order(ByteOrder.LITTLE_ENDIAN);
+                for (final Matrix matrix : tensor.matrices) {
+                    block.asDoubleBuffer().get(matrix.getData(), matrix.getOffset(), matrix.getRows() * matrix.getCols());
+                    block.position(block.position() + matrix.getRows() * matrix.getCols() * Double.BYTES);
+                }
+            }
+            return network;
+        }
+    }
+
+    /**
+     * @param copy if true, the tensors are copies of the parameters, otherwise they are the parameters themselves
+     * @return the network's parameters in the order they are stored
+     */
+    private static List<Tensor> tensors(final CNN network, final boolean copy) {
+        final List<Tensor> tensors = new ArrayList<>();
+        for (int j = 0; j < network.kernelList.size(); j++) {
+            tensors.add(new Tensor("convolution" + j + ".kernels", network.kernelList.get(j), copy));
+        }
+        for (int j = 0; j < network.fullyConnectedLayers.size(); j++) {
+            final FullyConnectedLayer layer = network.fullyConnectedLayers.get(j);
+            tensors.add(new Tensor("fullyConnected" + j + ".weights", new Matrix[]{layer.getWeights()}, copy));
+        }
+        return tensors;
+    }
+
+    private static ByteBuffer header(final Snapshot snapshot) {
+        int size = 4 * Integer.BYTES + Long.BYTES + Integer.BYTES + snapshot.kernelAmounts.length * 6 * Integer.BYTES;
+        for (final Tensor tensor : snapshot.tensors) {
+            size += Short.BYTES + tensor.name.getBytes(StandardCharsets.UTF_8).length + 3 * Integer.BYTES + Long.BYTES;
+        }
+        final ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION);
+        header.putLong(snapshot.iteration).putInt(snapshot.batchSize);
+        header.putInt(snapshot.kernelAmounts.length);
+        for (int j = 0; j < snapshot.kernelAmounts.length; j++) {
+            final PoolingLayer pooling = snapshot.pooling[j];
+            header.putInt(snapshot.kernelAmounts[j]).putInt(snapshot.kernelSizes[j]);
+            header.putInt(pooling.getMode().ordinal()).putInt(pooling.getWindow()).putInt(pooling.getStride()).putInt(pooling.getPadding());
+        }
+        header.putInt(snapshot.tensors.size());
+        for (final Tensor tensor : snapshot.tensors) {
+            final byte[] name = tensor.name.getBytes(StandardCharsets.UTF_8);
+            header.putShort((short) name.length).put(name);
+            header.putInt(tensor.matrices.length).putInt(tensor.rows()).putInt(tensor.cols()).putLong(tensor.offset);
+        }
+        return header.flip();
+    }
+
+    private static long align(final long position) {
+        return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * Everything a checkpoint holds: the architecture, the training progress and the parameters.
+     * A snapshot owns copies of the parameters, so it can be written while the network keeps training
+     */
+    public static final class Snapshot {
+
+        private final int[] kernelAmounts;
+        private final int[] kernelSizes;
+        private final PoolingLayer[] pooling;
+        private final List<Tensor> tensors;
+        private long iteration;
+        private int batchSize;
+
+        /**
+         * @param copy if false, the snapshot refers to the live parameters, which must not change while it is written
+         */
+        private Snapshot(final CNN network, final boolean copy) {
+            this.kernelAmounts = network.getKernelAmounts();
+            this.kernelSizes = network.kernelList.stream().mapToInt(kernels -> kernels[0].getRows()).toArray();
+            this.pooling = network.poolingLayers.toArray(PoolingLayer[]::new);
+            this.tensors = tensors(network, copy);
+            this.iteration = network.getIteration();
+            this.batchSize = network.getBatchSize();
+        }
+
+        /**
+         * @param network the network to copy
+         * @return a copy of the network's current parameters and progress
+         */
+        public static Snapshot of(final @NotNull CNN network) {
+            return new Snapshot(network, true);
+        }
+
+        /**
+         * Overwrites the snapshot with the network's current parameters and progress, without allocating
+         *
+         * @param network a network of the architecture the snapshot was taken of
+         */
+        public void update(final @NotNull CNN network) {
+            final List<Tensor> current = tensors(network, false);
+            if (current.size() != tensors.size()) {
+                throw new IllegalArgumentException("The network's architecture differs from the snapshot's");
+            }
+            for (int t = 0; t < tensors.size(); t++) {
+                final Matrix[] source = current.get(t).matrices;
+                final Matrix[] destination = tensors.get(t).matrices;
+                if (source.length != destination.length) {
+                    throw new IllegalArgumentException("The network's architecture differs from the snapshot's");
+                }
+                for (int i = 0; i < source.length; i++) {
+                    destination[i].copyFrom(source[i]);
+                }
+            }
+            this.iteration = network.getIteration();
+            this.batchSize = network.getBatchSize();
+        }
+
+        /**
+         * @return the number of training steps the network had performed
+         */
+        public long getIteration() {
+            return iteration;
+        }
+    }
+
+    /**
+     * A named parameter, stored as a number of equally sized matrices, each of which must be contiguous
+     */
+    private static final class Tensor {
+
+        private final String name;
+        private final Matrix[] matrices;
+        private long offset;
+
+        private Tensor(final String name, final Matrix[] matrices, final boolean copy) {
+            for (final Matrix matrix : matrices) {
+                if (!matrix.isContiguous()) {
+                    throw new IllegalArgumentException("Parameter " + name + " is not stored contiguously");
+                }
+            }
+            this.name = name;
+            if (copy) {
+                this.matrices = new Matrix[matrices.length];
+                for (int i = 0; i < matrices.length; i++) {
+                    this.matrices[i] = Matrix.of(matrices[i].getRows(), matrices[i].getCols(), Init.UNINITIALIZED);
+                    this.matrices[i].copyFrom(matrices[i]);
+                }
+            } else {
+                this.matrices = matrices;
+            }
+        }
+
+        private int rows() {
+            return matrices[0].getRows();
+        }
+
+        private int cols() {
+            return matrices[0].getCols();
+        }
+
+        private long bytes() {
+            return (long) matrices.length * rows() * cols() * Double.BYTES;
+        }
+    }
+}
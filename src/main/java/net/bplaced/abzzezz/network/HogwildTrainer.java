@@ -0,0 +1,171 @@
+package net.bplaced.abzzezz.network;
+
+import net.bplaced.abzzezz.util.image.ImageLoader;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Asynchronous, lock-free training in the style of Hogwild!.
+ * <p>
+ * Every thread owns one {@link CNN.Context}, all of them share the network's kernels and weights. A thread loops
+ * on its own: it loads a few samples, computes their gradients and immediately subtracts them from the shared
+ * parameters. There is no barrier and no lock, the updates are plain array writes which may interleave with other threads' reads and writes.
+ * <p>
+ * Trade-offs compared to the synchronous {@link ParallelTrainer}:
+ * <ul>
+ *     <li>A thread's gradient is computed from parameters which other threads may change meanwhile, it is stale
+ *     by up to one update per other thread, and a forward pass may even see a partially applied update</li>
+ *     <li>Concurrent updates of the same parameter may be lost, the last write wins. This is rare as long as the
+ *     updates are sparse, but the fully connected layers' updates are dense, so lost updates do happen</li>
+ *     <li>Both effects act like additional gradient noise. Training still converges for small learning rates,
+ *     but the result is not reproducible and a large learning rate with many threads can diverge</li>
+ *     <li>In return no thread ever waits for another one, the slowest thread does not stall the others</li>
+ * </ul>
+ * Updates with few samples are noisier and contend more, with many samples they approach synchronous training.
+ */
+public class HogwildTrainer implements AutoCloseable {
+
+    private final CNN network;
+    /**
+     * One context per thread
+     */
+    private final CNN.Context[] contexts;
+    private final ExecutorService executor;
+    private final int samplesPerUpdate;
+
+    /**
+     * Per thread: the samples it trained on and the nanoseconds it spent training
+     */
+    private final AtomicLongArray samples;
+    private final AtomicLongArray nanos;
+
+    /**
+     * Creates a trainer with one thread per available processor, updating after every sample
+     *
+     * @param network the network to train
+     */
+    public HogwildTrainer(final @NotNull CNN network) {
+        this(network, Runtime.getRuntime().availableProcessors(), 1);
+    }
+
+    /**
+     * @param network          the network to train
+     * @param threads          the number of threads
+     * @param samplesPerUpdate the number of samples every thread accumulates before updating the shared parameters
+     */
+    public HogwildTrainer(final @NotNull CNN network, final int threads, final int samplesPerUpdate) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The trainer needs at least one thread, was " + threads);
+        }
+        if (samplesPerUpdate < 1) {
+            throw new IllegalArgumentException("An update needs at least one sample, was " + samplesPerUpdate);
+        }
+        this.network = network;
+        this.samplesPerUpdate = samplesPerUpdate;
+        this.contexts = new CNN.Context[threads];
+        for (int i = 0; i < threads; i++) {
+            contexts[i] = network.newContext();
+        }
+        this.samples = new AtomicLongArray(threads);
+        this.nanos = new AtomicLongArray(threads);
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "Hogwild-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Trains until the threads together performed the given number of updates. Returns once all threads finished
+     *
+     * @param updates the number of updates of all threads
+     */
+    public void train(final int updates) {
+        final AtomicInteger remaining = new AtomicInteger(updates);
+        final List<Callable<Void>> tasks = new ArrayList<>(contexts.length);
+        for (int i = 0; i < contexts.length; i++) {
+            final int thread = i;
+            tasks.add(() -> {
+                work(thread, remaining);
+                return null;
+            });
+        }
+        try {
+            for (final Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while training", e);
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException("A training thread failed", e.getCause());
+        }
+    }
+
+    /**
+     * A thread's loop, taking one update at a time until none are left
+     */
+    private void work(final int thread, final AtomicInteger remaining) throws IOException {
+        final CNN.Context context = contexts[thread];
+        while (remaining.getAndDecrement() > 0) {
+            final long start = System.nanoTime();
+            network.computeGradients(context, ImageLoader.getRandomTrainingBatch(samplesPerUpdate));
+            network.applyGradients(context, samplesPerUpdate);
+            samples.addAndGet(thread, samplesPerUpdate);
+            nanos.addAndGet(thread, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @param thread the thread's index
+     * @return the number of samples the thread trained on so far
+     */
+    public long getSamples(final int thread) {
+        return samples.get(thread);
+    }
+
+    /**
+     * @param thread the thread's index
+     * @return the samples per second the thread trained on while it was training, 0 before its first update
+     */
+    public double getThroughput(final int thread) {
+        final long time = nanos.get(thread);
+        return time == 0 ? 0 : samples.get(thread) * 1e9 / time;
+    }
+
+    /**
+     * Resets the throughput counters of all threads
+     */
+    public void resetCounters() {
+        for (int i = 0; i < contexts.length; i++) {
+            samples.set(i, 0);
+            nanos.set(i, 0);
+        }
+    }
+
+    /**
+     * @return the number of threads
+     */
+    public int getThreads() {
+        return contexts.length;
+    }
+
+    /**
+     * Stops the trainer's threads. The network stays usable
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,207 @@
+package net.bplaced.abzzezz.network;
+
+import net.bplaced.abzzezz.util.TrainData;
+import net.bplaced.abzzezz.util.image.ImageLoader;
+import net.bplaced.abzzezz.util.math.matrix.Matrix;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Data-parallel training of one network on a pool of platform threads.
+ * <p>
+ * The trainer keeps one {@link CNN.Context} per thread. All threads share the network's kernels and weights,
+ * but every context holds its own activations, engine buffers and accumulated gradients.
+ * A training step splits the batch into one contiguous shard per context, computes all shards' gradients in parallel,
+ * sums them into the first context's gradients and applies them in a single update. The sum is computed in parallel
+ * as well, every thread reduces the same rows of all contexts' gradients.
+ * <p>
+ * The parameters are only written between the parallel phases, so no pass ever observes a partial update and
+ * the result equals training the network with the whole batch on one thread, up to the order of the sums.
+ */
+public class ParallelTrainer implements AutoCloseable {
+
+    private final CNN network;
+    /**
+     * One context per thread
+     */
+    private final CNN.Context[] contexts;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a trainer with one thread per available processor
+     *
+     * @param network the network to train
+     */
+    public ParallelTrainer(final @NotNull CNN network) {
+        this(network, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param network the network to train
+     * @param threads the number of threads
+     */
+    public ParallelTrainer(final @NotNull CNN network, final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The trainer needs at least one thread, was " + threads);
+        }
+        this.network = network;
+        this.contexts = new CNN.Context[threads];
+        for (int i = 0; i < threads; i++) {
+            contexts[i] = network.newContext();
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "Trainer-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Trains the network with mini-batches of {@link CNN#getBatchSize()} random samples.
+     * Every thread loads its own shard of the batch, so the images are read in parallel as well
+     *
+     * @param iterations the number of batches
+     */
+    public void train(final int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            System.out.println("Training iteration: " + i);
+            final int batchSize = network.getBatchSize();
+            final int shards = Math.min(contexts.length, batchSize);
+            final List<Callable<Void>> tasks = new ArrayList<>(shards);
+            for (int s = 0; s < shards; s++) {
+                final CNN.Context context = contexts[s];
+                final int samples = shardEnd(s, shards, batchSize) - shardStart(s, shards, batchSize);
+                tasks.add(() -> {
+                    network.computeGradients(context, ImageLoader.getRandomTrainingBatch(samples));
+                    return null;
+                });
+            }
+            System.out.printf("Feeding %d samples on %d threads%n", batchSize, shards);
+            step(tasks, batchSize);
+        }
+    }
+
+    /**
+     * Performs one training step with the given batch
+     *
+     * @param batch the samples
+     */
+    public void train(final TrainData @NotNull [] batch) {
+        final int shards = Math.min(contexts.length, batch.length);
+        final List<Callable<Void>> tasks = new ArrayList<>(shards);
+        for (int s = 0; s < shards; s++) {
+            final CNN.Context context = contexts[s];
+            final TrainData[] shard = Arrays.copyOfRange(batch, shardStart(s, shards, batch.length), shardEnd(s, shards, batch.length));
+            tasks.add(() -> {
+                network.computeGradients(context, shard);
+                return null;
+            });
+        }
+        step(tasks, batch.length);
+    }
+
+    /**
+     * Computes the shards' gradients, reduces them into the first context's gradients and applies them
+     *
+     * @param tasks   one task per shard, the n-th task uses the n-th context
+     * @param samples the number of samples of all shards
+     */
+    private void step(final List<Callable<Void>> tasks, final int samples) {
+        invokeAll(tasks);
+        reduce(tasks.size());
+        network.applyGradients(contexts[0], samples);
+    }
+
+    /**
+     * Adds the gradients of the contexts 1 to shards - 1 to the first context's gradients and resets them.
+     * Every gradient's rows are split into one chunk per thread, so no two threads write the same values
+     *
+     * @param shards the number of contexts which computed gradients
+     */
+    private void reduce(final int shards) {
+        if (shards < 2) {
+            return;
+        }
+        final List<List<Matrix>> gradients = new ArrayList<>(shards);
+        for (int s = 0; s < shards; s++) {
+            gradients.add(contexts[s].getGradients());
+        }
+        final int chunks = contexts.length;
+        final List<Callable<Void>> tasks = new ArrayList<>(chunks);
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            final int index = chunk;
+            tasks.add(() -> {
+                for (int g = 0; g < gradients.get(0).size(); g++) {
+                    final Matrix sum = gradients.get(0).get(g);
+                    final int start = shardStart(index, chunks, sum.getRows());
+                    final int rows = shardEnd(index, chunks, sum.getRows()) - start;
+                    if (rows == 0) {
+                        continue;
+                    }
+                    final Matrix destination = sum.view(start, 0, rows, sum.getCols());
+                    for (int s = 1; s < shards; s++) {
+                        final Matrix source = gradients.get(s).get(g).view(start, 0, rows, sum.getCols());
+                        destination.add(source);
+                        source.fillZeros();
+                    }
+                }
+                return null;
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    /**
+     * Runs the tasks on the pool and waits for all of them
+     *
+     * @throws IllegalStateException if a task failed
+     */
+    private void invokeAll(final List<Callable<Void>> tasks) {
+        try {
+            for (final Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while training", e);
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException("A training task failed", e.getCause());
+        }
+    }
+
+    /**
+     * @return the first index of the n-th of a number of contiguous, nearly equally sized parts of a length
+     */
+    private static int shardStart(final int shard, final int shards, final int length) {
+        return (int) ((long) shard * length / shards);
+    }
+
+    private static int shardEnd(final int shard, final int shards, final int length) {
+        return shardStart(shard + 1, shards, length);
+    }
+
+    /**
+     * @return the number of threads
+     */
+    public int getThreads() {
+        return contexts.length;
+    }
+
+    /**
+     * Stops the trainer's threads. The network stays usable
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,146 @@
+package net.bplaced.abzzezz.network;
+
+import net.bplaced.abzzezz.util.ThreadUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Saves a network in the background while it is trained, every few iterations or seconds, whichever comes first.
+ * <p>
+ * The training thread only copies the parameters into one of two snapshot buffers, which is a memory copy and no
+ * disk I/O. A dedicated thread writes the snapshot with {@link Checkpoint#save(Checkpoint.Snapshot, Path)}, i.e. to a
+ * temporary file which is synced and atomically renamed. While one buffer is written the other one can be filled,
+ * if both are still in use when the next checkpoint is due, that checkpoint is skipped instead of waiting for the disk.
+ * <p>
+ * To resume training, load the latest checkpoint with {@link Checkpoint#load(Path)}, it continues at the saved
+ * iteration. Plain gradient descent has no optimizer state beyond the parameters.
+ */
+public class PeriodicCheckpointer implements AutoCloseable {
+
+    private final CNN network;
+    private final Path path;
+    private final int everyIterations;
+    private final long everyNanos;
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(ThreadUtil.daemonThreadFactory("Checkpoint"));
+    /**
+     * The snapshot buffers which are not being written, at most two buffers are ever allocated
+     */
+    private final BlockingQueue<Checkpoint.Snapshot> free = new ArrayBlockingQueue<>(2);
+    private int allocated;
+
+    private long lastIteration;
+    private long lastTime;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private volatile IOException lastError;
+
+    /**
+     * @param network         the network to save
+     * @param path            the checkpoint file, replaced by every checkpoint
+     * @param everyIterations the number of iterations between checkpoints, 0 to only save by time
+     * @param every           the time between checkpoints, 0 to only save by iterations
+     * @param unit            the time's unit
+     */
+    public PeriodicCheckpointer(final @NotNull CNN network, final @NotNull Path path, final int everyIterations,
+                                final long every, final @NotNull TimeUnit unit) {
+        if (everyIterations < 0 || every < 0 || (everyIterations == 0 && every == 0)) {
+            throw new IllegalArgumentException("Checkpoints need a positive interval of iterations or time");
+        }
+        this.network = network;
+        this.path = path;
+        this.everyIterations = everyIterations;
+        this.everyNanos = unit.toNanos(every);
+        this.lastIteration = network.getIteration();
+        this.lastTime = System.nanoTime();
+    }
+
+    /**
+     * Takes a checkpoint if one is due. Has to be called between training steps, by the training thread
+     */
+    public void maybeCheckpoint() {
+        final boolean iterationsDue = everyIterations > 0 && network.getIteration() - lastIteration >= everyIterations;
+        final boolean timeDue = everyNanos > 0 && System.nanoTime() - lastTime >= everyNanos;
+        if (iterationsDue || timeDue) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Snapshots the network and queues the snapshot for writing. Never waits for the disk
+     *
+     * @return false if the checkpoint was skipped since both snapshot buffers are still being written
+     */
+    public boolean checkpoint() {
+        Checkpoint.Snapshot snapshot = free.poll();
+        if (snapshot == null) {
+            if (allocated == 2) {
+                skipped.incrementAndGet();
+                return false;
+            }
+            snapshot = Checkpoint.Snapshot.of(network);
+            allocated++;
+        } else {
+            snapshot.update(network);
+        }
+        lastIteration = snapshot.getIteration();
+        lastTime = System.nanoTime();
+
+        final Checkpoint.Snapshot pending = snapshot;
+        writer.execute(() -> {
+            try {
+                Checkpoint.save(pending, path);
+                written.incrementAndGet();
+            } catch (final IOException e) {
+                lastError = e;
+                System.err.println("Could not write checkpoint " + path + ": " + e.getMessage());
+            } finally {
+                free.add(pending);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return the number of checkpoints written
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of due checkpoints skipped because the disk did not keep up
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * @return the error of the last failed write, null if none failed
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Waits until the queued checkpoints are written, then stops the writer thread
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
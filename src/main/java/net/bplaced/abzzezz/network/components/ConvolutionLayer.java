@@ -1,17 +1,108 @@
 package net.bplaced.abzzezz.network.components;
 
+import net.bplaced.abzzezz.network.convolution.ConvolutionAlgorithm;
+import net.bplaced.abzzezz.network.convolution.ConvolutionEngine;
+import net.bplaced.abzzezz.network.convolution.DirectConvolution;
+import net.bplaced.abzzezz.network.convolution.FusedConvolutionPool;
 import net.bplaced.abzzezz.util.Const;
 import net.bplaced.abzzezz.util.math.MathUtil;
 import net.bplaced.abzzezz.util.math.matrix.Matrix;
 import net.bplaced.abzzezz.util.math.matrix.MatrixUtil;
+import net.bplaced.abzzezz.util.math.tensor.Init;
+import net.bplaced.abzzezz.util.math.tensor.Workspace;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Convolves maps with the kernels passed on every forward pass.
+ * <p>
+ * Every sample's maps are its input channels. The kernels form filters of one kernel per input channel, every filter
+ * sums the convolutions of all channels with its kernels into one output channel, so a layer maps C input channels
+ * to as many output channels as it has filters, whatever the number of input channels.
+ * <p>
+ * The layer holds no state of a pass. The input kept for the backward pass, the engine with its buffers and cached
+ * kernel transforms and the accumulated gradient live in a {@link Context}, so one layer can serve several passes
+ * at once. The methods without a context use the calling thread's own context.
+ * <p>
+ * The kernels are updated in place by any context. Every update is counted, so that every context notices on its
+ * next forward pass that its engine's cached kernel transforms are stale.
+ */
 public class ConvolutionLayer {
 
-    private Matrix[] input;
-    private Matrix[] kernels;
+    /**
+     * The algorithm every context's engine is created from. Unless one is given, it is chosen on the first forward
+     * pass from the kernel and input shape
+     *
+     * @see ConvolutionAlgorithm#select(int, int, int, int, int, int)
+     */
+    private volatile ConvolutionAlgorithm algorithm;
+    /**
+     * A supplied engine, handed to the first context only since engines cannot be shared
+     */
+    private ConvolutionEngine suppliedEngine;
+    private final boolean hasSuppliedEngine;
+    /**
+     * Counts the kernel updates, a context whose engine has seen fewer updates discards its cached kernel transforms
+     */
+    private final AtomicLong updates = new AtomicLong();
+
+    private final ThreadLocal<Context> contexts = ThreadLocal.withInitial(this::newContext);
+
+    public ConvolutionLayer() {
+        this.hasSuppliedEngine = false;
+    }
+
+    public ConvolutionLayer(final @NotNull ConvolutionEngine engine) {
+        this.suppliedEngine = engine;
+        this.hasSuppliedEngine = true;
+    }
+
+    public ConvolutionLayer(final @NotNull ConvolutionAlgorithm algorithm) {
+        this.algorithm = algorithm;
+        this.hasSuppliedEngine = false;
+    }
+
+    /**
+     * @return a new context for passes through this layer
+     * @throws IllegalStateException if the layer was given an engine instance which is already used by another context
+     */
+    public synchronized Context newContext() {
+        if (hasSuppliedEngine) {
+            if (suppliedEngine == null) {
+                throw new IllegalStateException("A supplied engine can only be used by one context");
+            }
+            final Context context = new Context(suppliedEngine);
+            suppliedEngine = null;
+            return context;
+        }
+        return new Context(algorithm == null ? null : algorithm.create());
+    }
+
+    /**
+     * @return the calling thread's context
+     */
+    public Context context() {
+        return contexts.get();
+    }
 
     public Matrix convolve(@NotNull Matrix input, @NotNull Matrix kernel) {
+        final Matrix resultMatrix = Matrix.of(
+                ConvolutionEngine.outputSize(input.getRows(), kernel.getRows()),
+                ConvolutionEngine.outputSize(input.getCols(), kernel.getCols()),
+                Init.UNINITIALIZED);
+        convolve(input, kernel, resultMatrix);
+        return resultMatrix;
+    }
+
+    /**
+     * Convolves the input with the kernel and writes the feature map into a pre-allocated matrix
+     *
+     * @param input        the input matrix
+     * @param kernel       the kernel to convolve with
+     * @param resultMatrix the matrix to write the result to
+     */
+    public void convolve(@NotNull Matrix input, @NotNull Matrix kernel, @NotNull Matrix resultMatrix) {
         /*
         If the input is of size n*n and the kernel (or filter) of size ⨍ x ⨍, then the output is of size
         is g(n, ⨍) = (n - ⨍) + 1
@@ -22,84 +113,242 @@ public class ConvolutionLayer {
         with p = 0 no padding is given, this is called "same" convolution
         When p = (⨍ - 1) / 2 the input and the output are the same size
         Note that the stride is equal to one
+        The padding is never materialized, every window is read in place from the input
+        and the taps which would fall onto the padding are skipped
          */
-        final int p = (kernel.getRows() - 1) / 2;
-        final Matrix paddedInput = input.pad(p);
+        DirectConvolution.convolve(input, kernel, resultMatrix);
+    }
+
+    public Matrix[] forwardPropagation(final @NotNull Matrix[] input, final @NotNull Matrix[] kernels) {
+        return forwardPropagation(context(), input, 1, kernels);
+    }
 
-        final int rowLength = (input.getRows() + (2 * p) - kernel.getRows() + 1);
-        final int columnLength = (input.getCols() + (2 * p) - kernel.getCols() + 1);
+    public Matrix[] forwardPropagation(final @NotNull Matrix[] input, final int batchSize, final @NotNull Matrix[] kernels) {
+        return forwardPropagation(context(), input, batchSize, kernels);
+    }
+
+    public Matrix[] backwardsPropagation(final Matrix[] delta) {
+        return backwardsPropagation(context(), delta);
+    }
 
-        final Matrix resultMatrix = new Matrix(rowLength, columnLength);
+    public void applyGradients(final int samples) {
+        applyGradients(context(), samples);
+    }
 
-        for (int i = 0; i + kernel.getRows() < paddedInput.getRows(); i++) {
-            for (int j = 0; j + kernel.getCols() < paddedInput.getCols(); j++) {
+    /**
+     * Convolves every sample of a batch with every filter.
+     * The whole batch is handed to the engine at once, e.g. lowered to one matrix multiplication
+     *
+     * @param context   the pass's context
+     * @param input     the input channels, ordered [sample][channel]
+     * @param batchSize the number of samples
+     * @param kernels   the filters' kernels, one per input channel, ordered [filter][channel]
+     * @return the output channels, one per filter, ordered [sample][filter], valid until the next forward pass
+     */
+    public Matrix[] forwardPropagation(final @NotNull Context context, final @NotNull Matrix[] input, final int batchSize, final @NotNull Matrix[] kernels) {
+        final int channels = channels(input, batchSize, kernels);
+        final int filters = kernels.length / channels;
+        context.input = input;
+        context.kernels = kernels;
+        context.batchSize = batchSize;
+        //All output maps share one contiguous buffer, in the engine's order [filter][sample]
+        final Matrix[] matrices = context.workspace.stack("output", filters * batchSize,
+                ConvolutionEngine.outputSize(input[0].getRows(), kernels[0].getRows()),
+                ConvolutionEngine.outputSize(input[0].getCols(), kernels[0].getCols()),
+                Init.UNINITIALIZED);
 
-                final Matrix subMatrix = paddedInput.subMatrix(i, j, kernel.getRows(), kernel.getCols());
-                final double res = MatrixUtil.sumAndMultiply(subMatrix, kernel);
-                resultMatrix.set(i, j, res);
+        final long currentUpdates = updates.get();
+        if (context.updates != currentUpdates) {
+            //Another context, or this one, changed the kernels since the last pass
+            context.invalidate();
+            context.updates = currentUpdates;
+        }
+        if (context.engine == null) {
+            if (algorithm == null) {
+                algorithm = ConvolutionAlgorithm.select(filters, channels,
+                        kernels[0].getRows(), kernels[0].getCols(), input[0].getRows(), input[0].getCols());
             }
+            context.engine = algorithm.create();
         }
-        return resultMatrix;
+        context.engine.forward(input, channels, kernels, matrices);
+        return reorder(matrices, filters, batchSize);
     }
 
-    public Matrix[] forwardPropagation(final @NotNull Matrix[] input, final @NotNull Matrix[] kernels) {
-        this.input = input;
-        this.kernels = kernels;
-        //  return Arrays.stream(kernels).map(matrix -> convolve(input, matrix)).toArray(Matrix[]::new);
-        final Matrix[] matrices = new Matrix[kernels.length * input.length];
+    /**
+     * Convolves every sample of a batch with every filter and max-pools the output channels with 2x2 windows and a
+     * stride of 2 in the same pass, like a following {@link PoolingLayer} would.
+     * The full-resolution feature maps are never materialized and nothing is kept for a backward pass,
+     * so this is for inference only
+     *
+     * @param context   the pass's context
+     * @param input     the input channels, ordered [sample][channel]
+     * @param batchSize the number of samples
+     * @param kernels   the filters' kernels, one per input channel, ordered [filter][channel]
+     * @return the pooled output channels, ordered [sample][filter], valid until the next forward pass
+     * @see FusedConvolutionPool
+     */
+    public Matrix[] forwardPooled(final @NotNull Context context, final @NotNull Matrix[] input, final int batchSize, final @NotNull Matrix[] kernels) {
+        final int channels = channels(input, batchSize, kernels);
+        final int filters = kernels.length / channels;
+        final int rows = ConvolutionEngine.outputSize(input[0].getRows(), kernels[0].getRows());
+        final int cols = ConvolutionEngine.outputSize(input[0].getCols(), kernels[0].getCols());
+        //All pooled maps share one contiguous buffer in the order [sample][filter], like a pooling layer's output
+        final Matrix[] output = context.workspace.stack("pooledOutput", filters * batchSize,
+                FusedConvolutionPool.pooledSize(rows), FusedConvolutionPool.pooledSize(cols), Init.UNINITIALIZED);
+        final double[] strip = context.workspace.vec("strip", 2 * cols, Init.UNINITIALIZED).getData();
 
-        for (int i = 0; i < kernels.length; i++) {
-            for (int j = 0; j < input.length; j++) {
-                matrices[i * input.length + j] = convolve(input[j], kernels[i]);
-            }
+        //The layer has no bias and applies no activation before the pooling
+        FusedConvolutionPool.forward(input, channels, kernels, null, MathUtil.ActivationFunction.LINEAR,
+                reorder(output, batchSize, filters), strip);
+        return output;
+    }
+
+    /**
+     * @return the number of input channels per sample
+     * @throws IllegalArgumentException if the samples' channels and the filters' kernels do not match up
+     */
+    private static int channels(final Matrix[] input, final int batchSize, final Matrix[] kernels) {
+        if (input.length % batchSize != 0) {
+            throw new IllegalArgumentException("Every sample of the batch must have the same number of maps");
         }
-        return matrices;
+        final int channels = input.length / batchSize;
+        if (kernels.length % channels != 0) {
+            throw new IllegalArgumentException(String.format("Every filter needs one kernel per input channel, got %d kernels for %d channels", kernels.length, channels));
+        }
+        return channels;
     }
 
+    /**
+     * Reorders the references, not the maps, from [outer][inner] into [inner][outer],
+     * e.g. from the engine's order [filter][sample] into [sample][filter]
+     */
+    private static Matrix[] reorder(final Matrix[] matrices, final int outer, final int inner) {
+        if (outer == 1 || inner == 1) {
+            return matrices;
+        }
+        final Matrix[] output = new Matrix[matrices.length];
+        for (int o = 0; o < outer; o++) {
+            for (int i = 0; i < inner; i++) {
+                output[i * outer + o] = matrices[o * inner + i];
+            }
+        }
+        return output;
+    }
 
-    public Matrix[] backwardsPropagation(final Matrix[] delta) {
-        if (delta.length != input.length * kernels.length) {
+    /**
+     * Back-propagates the error of the context's last forward pass.
+     * The kernels' gradient is accumulated until {@link #applyGradients(Context, int)} is called
+     *
+     * @param context the pass's context
+     * @param delta   the derivative of the loss with respect to the output channels, ordered [sample][filter]
+     * @return the derivative of the loss with respect to the input channels, ordered [sample][channel]
+     */
+    public Matrix[] backwardsPropagation(final @NotNull Context context, final Matrix[] delta) {
+        final Matrix[] input = context.input;
+        final Matrix[] kernels = context.kernels;
+        final int batchSize = context.batchSize;
+        final int filters = kernels.length / (input.length / batchSize);
+        if (delta.length != batchSize * filters) {
             System.err.printf("Matrix size mismatch. @ConvolutionPayer#backwardsPropagation Input was %d, expected %d",
                     delta.length,
-                    input.length * kernels.length);
+                    batchSize * filters);
             return null;
         }
 
-        final Matrix[] deltaKernels = new Matrix[kernels.length];
-        final Matrix[] deltaInput = new Matrix[input.length];
-
-        for (int i = 0; i < input.length; i++) {
-            final Matrix input = this.input[i];
-            deltaInput[i] = new Matrix(input.getRows(), input.getCols());
-            //Iterate over the input matrix
-            for (int row = 0; row + kernels[0].getRows() < input.getRows(); row++) {
-                for (int column = 0; column + kernels[0].getCols() < input.getCols(); column++) {
-                    //Iterate over all the kernels
-                    for (int l = 0; l < kernels.length; l++) {
-                        final Matrix kernel = kernels[l];
-                        deltaKernels[l] = new Matrix(kernel.getRows(), kernel.getCols());
-                        //Iterate over the input regions
-                        final Matrix region = input.subMatrix(row, column, kernel.getRows(), kernel.getCols());
-                        //Get the delta for the region
-                        final double d = delta[i * kernels.length + l].get(row, column);
-                        //Multiply the delta with the region
-                        region.multiply(d);
-                        //Add the result to the deltaKernels
-                        deltaKernels[l].add(region);
-
-                        for (int j = 0; j < deltaKernels[l].getRows(); j++) {
-                            for (int k = 0; k < deltaKernels[l].getRows(); k++) {
-                                deltaInput[i].set(row + j, column + k, deltaKernels[l].get(j, k));
-                            }
-                        }
-                    }
+        Matrix[] engineDelta = delta;
+        if (batchSize > 1 && filters > 1) {
+            //Back into the engine's order [filter][sample], contiguous
+            engineDelta = context.workspace.stack("engineDelta", delta.length, delta[0].getRows(), delta[0].getCols(), Init.UNINITIALIZED);
+            for (int o = 0; o < filters; o++) {
+                for (int n = 0; n < batchSize; n++) {
+                    engineDelta[o * batchSize + n].copyFrom(delta[n * filters + o]);
                 }
             }
         }
+
+        final Matrix[] deltaKernels = context.workspace.stack("deltaKernels", kernels.length, kernels[0].getRows(), kernels[0].getCols(), Init.UNINITIALIZED);
+        final Matrix[] deltaInput = context.workspace.stack("deltaInput", input.length, input[0].getRows(), input[0].getCols(), Init.UNINITIALIZED);
+
+        context.engine.backward(input, input.length / batchSize, kernels, engineDelta, deltaKernels, deltaInput);
+
+        if (context.gradient == null || context.gradient.length != kernels.length) {
+            context.gradient = MatrixUtil.stack(kernels.length, kernels[0].getRows(), kernels[0].getCols());
+        }
         for (int i = 0; i < kernels.length; i++) {
-            final Matrix m1 = MatrixUtil.transpose(deltaKernels[i]);
-            kernels[i] = MatrixUtil.addMatrices(kernels[i], m1.multiply(-Const.LEARNING_RATE));
+            context.gradient[i].add(deltaKernels[i]);
         }
         return deltaInput;
     }
-}
\ No newline at end of file
+
+    /**
+     * Performs one gradient descent step on the kernels of the context's last pass with the mean of the
+     * context's accumulated gradient and resets it
+     *
+     * @param context the pass's context
+     * @param samples the number of samples the gradient was accumulated over
+     */
+    public void applyGradients(final @NotNull Context context, final int samples) {
+        final Matrix[] gradient = context.gradient;
+        if (gradient == null) {
+            return;
+        }
+        //Update the kernels in place
+        for (int i = 0; i < gradient.length; i++) {
+            context.kernels[i].addScaled(gradient[i], -Const.LEARNING_RATE / samples);
+            gradient[i].fillZeros();
+        }
+        updates.incrementAndGet();
+    }
+
+    /**
+     * @return the engine computing the calling thread's convolutions, null until its first forward pass if none was supplied
+     */
+    public ConvolutionEngine getEngine() {
+        return context().engine;
+    }
+
+    /**
+     * The state of passes through the layer. A context serves one pass at a time and must not be shared between threads
+     */
+    public static final class Context {
+
+        private final Workspace workspace = new Workspace();
+
+        /**
+         * Computes the actual convolutions, created on the first forward pass unless the layer's algorithm is known
+         */
+        private ConvolutionEngine engine;
+
+        private Matrix[] input;
+        private Matrix[] kernels;
+        private int batchSize;
+        /**
+         * The sum of the kernels' gradients since they were last applied
+         */
+        private Matrix[] gradient;
+        /**
+         * The number of the layer's kernel updates the engine's cached kernel transforms are up to date with
+         */
+        private long updates;
+
+        private Context(final ConvolutionEngine engine) {
+            this.engine = engine;
+        }
+
+        /**
+         * Discards everything the engine derived from the kernels
+         */
+        private void invalidate() {
+            if (engine != null) {
+                engine.invalidate();
+            }
+        }
+
+        /**
+         * @return the gradient accumulated since the last update, one matrix per kernel, null before the first backward pass
+         */
+        public Matrix[] getGradient() {
+            return gradient;
+        }
+    }
+}
@@ -2,79 +2,233 @@ package net.bplaced.abzzezz.network.components;
 
 import net.bplaced.abzzezz.util.Const;
 import net.bplaced.abzzezz.util.math.MathUtil;
+import net.bplaced.abzzezz.util.math.matrix.Gemm;
 import net.bplaced.abzzezz.util.math.matrix.Matrix;
 import net.bplaced.abzzezz.util.math.matrix.MatrixUtil;
+import net.bplaced.abzzezz.util.math.tensor.Init;
+import net.bplaced.abzzezz.util.math.tensor.Workspace;
 import net.bplaced.abzzezz.util.math.vector.Vec;
 import org.jetbrains.annotations.NotNull;
 
+/**
+ * A dense layer, computed for a whole mini-batch at once.
+ * <p>
+ * The batch's inputs are the rows of a matrix X of shape [batch][inputs], the weights a matrix W of shape
+ * [nodes][inputs + 1], whose last column weighs the constant offset input -1. The layer's output is
+ * A = f(X * Wᵀ + bias) of shape [batch][nodes], i.e. one matrix multiplication instead of one matrix-vector product per sample.
+ * <p>
+ * The backward pass accumulates the weights' gradient over all batches until {@link #applyGradients(int)} is called.
+ * <p>
+ * The layer itself only holds the weights. Everything a pass writes, i.e. the activations kept for the backward pass,
+ * the scratch buffers and the accumulated gradient, lives in a {@link Context}, so one layer can serve several passes
+ * at once. The methods without a context use the calling thread's own context.
+ */
 public class FullyConnectedLayer {
 
     private final Matrix weights;
-    private final Vec lastInput;
-    private final Vec lastOutput;
+    private final int numInputs;
+    private final int numNodes;
 
     private final int bias = 1;
 
     private final MathUtil.ActivationFunction activationFunction;
 
+    private final ThreadLocal<Context> contexts = ThreadLocal.withInitial(this::newContext);
+
     public FullyConnectedLayer(final int numNodes, final int numInputs, final MathUtil.ActivationFunction activationFunction) {
-        this.weights = MatrixUtil.initializeWeightMatrix(new Matrix(numNodes, numInputs + 1), numInputs);
-        this.lastInput = new Vec(numInputs + 1);
-        this.lastOutput = new Vec(numNodes);
-        // Set the last value to be the offset. This will never change.
-        this.lastInput.set(lastInput.length() - 1, -1);
+        this(numNodes, numInputs, activationFunction, true);
+    }
+
+    /**
+     * @param initialize if false, the weights are left at zero, e.g. to be overwritten with saved weights
+     */
+    public FullyConnectedLayer(final int numNodes, final int numInputs, final MathUtil.ActivationFunction activationFunction, final boolean initialize) {
+        this.weights = initialize
+                ? MatrixUtil.initializeWeightMatrix(numNodes, numInputs + 1, numInputs)
+                : Matrix.of(numNodes, numInputs + 1, Init.UNINITIALIZED);
+        this.numInputs = numInputs;
+        this.numNodes = numNodes;
         this.activationFunction = activationFunction;
     }
 
+    /**
+     * @return a new context for passes through this layer
+     */
+    public Context newContext() {
+        return new Context(numNodes, numInputs + 1);
+    }
+
+    /**
+     * @return the calling thread's context
+     */
+    public Context context() {
+        return contexts.get();
+    }
+
     public Vec forwardPropagation(final @NotNull Vec input) {
-        if (input.length() != lastInput.length() - 1) {
-            System.err.printf("Vector length mismatch. @FullyConnectedLayer#computeOutput Input was: %d, expected: %d%n", input.length(), lastInput.length() - 1);
+        return forwardPropagation(context(), input);
+    }
+
+    public Matrix forwardPropagation(final @NotNull Matrix input) {
+        return forwardPropagation(context(), input);
+    }
+
+    public Vec propagateBackwards(final Vec delta) {
+        return propagateBackwards(context(), delta);
+    }
+
+    public Matrix propagateBackwards(final Matrix delta) {
+        return propagateBackwards(context(), delta);
+    }
+
+    public void applyGradients(final int samples) {
+        applyGradients(context(), samples);
+    }
+
+    /**
+     * Computes the layer's output for a single sample
+     *
+     * @param context the pass's context
+     * @param input the input vector
+     * @return the layer's output, valid until the next forward pass
+     */
+    public Vec forwardPropagation(final @NotNull Context context, final @NotNull Vec input) {
+        if (input.length() != numInputs) {
+            System.err.printf("Vector length mismatch. @FullyConnectedLayer#computeOutput Input was: %d, expected: %d%n", input.length(), numInputs);
             return null;
         }
-        //Copies the supplied input into the attribute "lastInput"
-        lastInput.copyFromVector(input);
-        /*
-        For the length of the last output vector,
-        calculate the last inputs sum, from each element multiplied by the corresponding weight
-        [n1, n2, n3, ..., nN] * [w1, w2, w3, ..., wN]
-         */
-
+        final Matrix row = context.workspace.matrix("sample", 1, numInputs, Init.UNINITIALIZED);
+        row.applyToElement((r, c, value) -> input.get(c));
+        return forwardPropagation(context, row).rowView(0);
+    }
 
-        for (int i = 0; i < lastOutput.length(); i++) {
-            double sum = 0;
-            for (int j = 0; j < lastInput.length(); j++) {
-                sum += (weights.get(i, j) * lastInput.get(j));
-                //System.out.println(weights.get(i, j) + " * " + lastInput.get(j));
-            }
-            sum += bias;
-            //System.out.println(sum);
-            lastOutput.set(i, activationFunction.apply(sum));
+    /**
+     * Computes the layer's output for a batch
+     *
+     * @param context the pass's context
+     * @param input the batch's inputs, of shape [batch][inputs]. Is read again by the backward pass
+     * @return the output of shape [batch][nodes], valid until the next forward pass
+     */
+    public Matrix forwardPropagation(final @NotNull Context context, final @NotNull Matrix input) {
+        if (input.getCols() != numInputs) {
+            throw new IllegalArgumentException(String.format("Matrix size mismatch. @FullyConnectedLayer#forwardPropagation Input was: %d, expected: %d", input.getCols(), numInputs));
         }
-        return lastOutput;
+        context.lastInput = input;
+        final int batch = input.getRows();
+        final Matrix sum = context.workspace.matrix("sum", batch, numNodes, Init.UNINITIALIZED);
+
+        //X * Wᵀ, the transposed view's columns are the weight rows, every sum is one dense dot product
+        Gemm.multiply(input, inputWeights().transposedView(), sum, false);
+        //The offset input -1 and the constant bias
+        final Vec offsetWeights = weights.columnView(numInputs);
+        sum.applyToElement((row, col, value) -> value - offsetWeights.get(col) + bias);
+        context.lastSum = sum;
+
+        return sum.map(activationFunction.function(), context.workspace.matrix("output", batch, numNodes, Init.UNINITIALIZED));
     }
 
-    public Vec propagateBackwards(final Vec delta) {
-        if (delta.length() != lastOutput.length()) {
-            System.err.printf("Vector length mismatch. @FullyConnectedLayer#computeOutput Input was: %d, expected: %d%n", delta.length(), lastOutput.length());
+    /**
+     * Back-propagates the error of a single sample and applies the resulting gradient immediately
+     *
+     * @param context the pass's context
+     * @param delta the derivative of the loss with respect to the layer's output
+     * @return the derivative of the loss with respect to the layer's input
+     */
+    public Vec propagateBackwards(final @NotNull Context context, final Vec delta) {
+        if (delta.length() != numNodes) {
+            System.err.printf("Vector length mismatch. @FullyConnectedLayer#computeOutput Input was: %d, expected: %d%n", delta.length(), numNodes);
             return null;
         }
-        final Vec deltaWeights = new Vec(weights.getCols() - 1);
-
-        // Compute deltas for the next layer
-        for (int i = 0; i < deltaWeights.length(); i++) {
-            double sum = 0;
-            for (int j = 0; j < delta.length(); j++) {
-                sum += (weights.get(j, i) * delta.get(j));
-            }
-            deltaWeights.set(i, sum);
+        final Matrix row = context.workspace.matrix("sampleDelta", 1, numNodes, Init.UNINITIALIZED);
+        row.applyToElement((r, c, value) -> delta.get(c));
+        final Vec deltaInput = propagateBackwards(context, row).rowView(0);
+        applyGradients(context, 1);
+        return deltaInput;
+    }
+
+    /**
+     * Back-propagates the error of the last forward pass's batch. The weights' gradient is accumulated, not applied
+     *
+     * @param context the pass's context
+     * @param delta the derivative of the loss with respect to the layer's output, of shape [batch][nodes]
+     * @return the derivative of the loss with respect to the layer's input, of shape [batch][inputs]
+     */
+    public Matrix propagateBackwards(final @NotNull Context context, final Matrix delta) {
+        final Matrix lastSum = context.lastSum;
+        final Matrix gradient = context.gradient;
+        if (delta.getRows() != lastSum.getRows() || delta.getCols() != numNodes) {
+            throw new IllegalArgumentException(String.format("Matrix size mismatch. @FullyConnectedLayer#propagateBackwards Input was: [%d][%d], expected: [%d][%d]",
+                    delta.getRows(), delta.getCols(), lastSum.getRows(), numNodes));
+        }
+        final int batch = delta.getRows();
+        //δ ⊙ f'(z)
+        final Matrix deltaSum = delta.combine(lastSum, (d, z) -> d * activationFunction.applyDerivative(z),
+                context.workspace.matrix("deltaSum", batch, numNodes, Init.UNINITIALIZED));
+
+        //Weights: [nodes][batch] * [batch][inputs], the offset input is -1 for every sample
+        Gemm.multiply(deltaSum.transposedView(), context.lastInput, gradient.view(0, 0, numNodes, numInputs), true);
+        for (int j = 0; j < numNodes; j++) {
+            gradient.set(j, numInputs, gradient.get(j, numInputs) - deltaSum.columnView(j).sum());
+        }
+
+        //Inputs: [batch][nodes] * [nodes][inputs]
+        final Matrix deltaInput = context.workspace.matrix("deltaInput", batch, numInputs, Init.UNINITIALIZED);
+        Gemm.multiply(deltaSum, inputWeights(), deltaInput, false);
+        return deltaInput;
+    }
+
+    /**
+     * Performs one gradient descent step with the mean of the accumulated gradient and resets it
+     *
+     * @param context the pass's context
+     * @param samples the number of samples the gradient was accumulated over
+     */
+    public void applyGradients(final @NotNull Context context, final int samples) {
+        weights.addScaled(context.gradient, -Const.LEARNING_RATE / samples);
+        context.gradient.fillZeros();
+    }
+
+    /**
+     * @return the weights of shape [nodes][inputs + 1], the last column weighs the offset input
+     */
+    public Matrix getWeights() {
+        return weights;
+    }
+
+    /**
+     * @return the weights without the offset column, of shape [nodes][inputs]
+     */
+    private Matrix inputWeights() {
+        return weights.view(0, 0, numNodes, numInputs);
+    }
+
+    /**
+     * The state of passes through the layer. A context serves one pass at a time and must not be shared between
+     * threads, the weights may be shared by any number of contexts
+     */
+    public static final class Context {
+
+        private final Workspace workspace = new Workspace();
+        /**
+         * The sum of the weights' gradients since they were last applied
+         */
+        private final Matrix gradient;
+
+        /**
+         * The last forward pass's input and weighted sums, needed by the backward pass
+         */
+        private Matrix lastInput;
+        private Matrix lastSum;
+
+        private Context(final int rows, final int cols) {
+            this.gradient = Matrix.of(rows, cols, Init.ZEROS);
         }
 
-        // Update the weights using the propped delta.
-        for (int i = 0; i < weights.getRows(); i++) {
-            for (int j = 0; j < weights.getCols() - 1; j++) {
-                weights.set(i, j, weights.get(i, j) + Const.LEARNING_RATE * deltaWeights.get(j) * lastInput.get(i));
-            }
+        /**
+         * @return the gradient accumulated since the last update, of shape [nodes][inputs + 1]
+         */
+        public Matrix getGradient() {
+            return gradient;
         }
-        return deltaWeights;
     }
 }
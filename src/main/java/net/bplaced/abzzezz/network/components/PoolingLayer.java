@@ -1,79 +1,343 @@
 package net.bplaced.abzzezz.network.components;
 
 import net.bplaced.abzzezz.util.math.matrix.Matrix;
+import net.bplaced.abzzezz.util.math.tensor.Init;
+import net.bplaced.abzzezz.util.math.tensor.Workspace;
 import org.jetbrains.annotations.NotNull;
 
+/**
+ * Pools every map on its own, by default max-pooling with 2x2 windows and a stride of 2.
+ * <p>
+ * Max and average pooling slide a square window with a given stride over the map, which may be padded on all sides.
+ * Windows overlap if the stride is smaller than the window. Padding never counts: max-pooling ignores it and
+ * average pooling divides by the number of the window's values inside the map. Global average pooling reduces every
+ * map to its mean, a 1x1 map.
+ * <p>
+ * The layer holds no state of a pass, the maps kept for the backward pass live in a {@link Context}, so one layer
+ * can serve several passes at once. The methods without a context use the calling thread's own context.
+ */
 public class PoolingLayer {
 
-    private Matrix[] inputs;
-    private Matrix[] output;
+    public enum Mode {
+        MAX,
+        AVERAGE,
+        GLOBAL_AVERAGE
+    }
 
+    private final Mode mode;
+    private final int window;
+    private final int stride;
+    private final int padding;
 
-    public Matrix maxPool(@NotNull final Matrix input) {
-        //Pooling size = 2
-        final int p = 2;
-        //Stride of 2
-        final int s = 2;
-        /*
-        Dimensions of the new output matrix:
-        with one channel: 128x128 -> 64x64
-         */
-        final int rowLength = (input.getRows() - p) / s + 1;
-        final int columnLength = (input.getCols() - p) / s + 1;
-        final Matrix matrix = new Matrix(rowLength, columnLength);
+    private final ThreadLocal<Context> contexts = ThreadLocal.withInitial(this::newContext);
 
-        for (int i = 0; i + p < input.getRows(); i += s) {
-            for (int j = 0; j + p < input.getCols(); j += s) {
-                final Matrix subMatrix = input.subMatrix(i, j, p, p);
+    public PoolingLayer() {
+        this(Mode.MAX, 2, 2, 0);
+    }
 
-                matrix.set((i - p) / s + 1, (j - p) / s + 1, subMatrix.maxValue());
-            }
+    /**
+     * @param mode {@link Mode#GLOBAL_AVERAGE}, or max or average pooling with 2x2 windows and a stride of 2
+     */
+    public PoolingLayer(final @NotNull Mode mode) {
+        this(mode, 2, 2, 0);
+    }
+
+    /**
+     * @param mode    how to pool
+     * @param window  the windows' size, ignored by global average pooling
+     * @param stride  the distance between two windows, ignored by global average pooling
+     * @param padding the padding added on every side of the map, smaller than the window, ignored by global average pooling
+     */
+    public PoolingLayer(final @NotNull Mode mode, final int window, final int stride, final int padding) {
+        if (mode != Mode.GLOBAL_AVERAGE && (window < 1 || stride < 1 || padding < 0 || padding >= window)) {
+            throw new IllegalArgumentException(String.format("Invalid pooling window %d, stride %d, padding %d", window, stride, padding));
+        }
+        this.mode = mode;
+        this.window = window;
+        this.stride = stride;
+        this.padding = padding;
+    }
+
+    /**
+     * @return a new context for passes through this layer
+     */
+    public Context newContext() {
+        return new Context();
+    }
+
+    /**
+     * @return the calling thread's context
+     */
+    public Context context() {
+        return contexts.get();
+    }
+
+    /**
+     * @param size the input map's rows or columns
+     * @return the pooled map's rows or columns
+     * @throws IllegalArgumentException if the padded map is smaller than a window
+     */
+    public int outputSize(final int size) {
+        if (mode == Mode.GLOBAL_AVERAGE) {
+            return 1;
+        }
+        if (size + 2 * padding < window) {
+            throw new IllegalArgumentException(String.format("A map of size %d with padding %d is smaller than the pooling window %d", size, padding, window));
         }
+        return (size + 2 * padding - window) / stride + 1;
+    }
+
+    /**
+     * @return whether the layer is the 2x2 max-pooling with a stride of 2 which can be fused with a preceding convolution
+     * @see net.bplaced.abzzezz.network.convolution.FusedConvolutionPool
+     */
+    public boolean isFusable() {
+        return mode == Mode.MAX && window == 2 && stride == 2 && padding == 0;
+    }
+
+    public Matrix pool(@NotNull final Matrix input) {
+        final Matrix matrix = Matrix.of(outputSize(input.getRows()), outputSize(input.getCols()), Init.UNINITIALIZED);
+        pool(input, matrix);
         return matrix;
     }
 
+    /**
+     * Pools the input into a pre-allocated matrix
+     *
+     * @param input  the matrix to pool
+     * @param matrix the matrix to write the pooled values to
+     */
+    public void pool(@NotNull final Matrix input, @NotNull final Matrix matrix) {
+        pool(input, matrix, null, 0);
+    }
+
+    /**
+     * @param argmax receives the position of every window's maximum in the input map, row * columns + column,
+     *               null if not needed. Only used by max-pooling
+     * @param offset the index of the map's first window in argmax
+     */
+    private void pool(final Matrix input, final Matrix matrix, final int[] argmax, int offset) {
+        final int rows = input.getRows();
+        final int cols = input.getCols();
+        if (mode == Mode.GLOBAL_AVERAGE) {
+            matrix.set(0, 0, input.sum() / (rows * cols));
+            return;
+        }
+        if (isFusable()) {
+            maxPool2x2(input, matrix, argmax, offset);
+            return;
+        }
+
+        final double[] data = input.getData();
+        final int colStride = input.getColStride();
+        for (int r = 0; r < matrix.getRows(); r++) {
+            //The window's rows and columns inside the map
+            final int top = r * stride - padding;
+            final int fromRow = Math.max(0, top);
+            final int toRow = Math.min(rows, top + window);
+            for (int c = 0; c < matrix.getCols(); c++) {
+                final int left = c * stride - padding;
+                final int fromCol = Math.max(0, left);
+                final int toCol = Math.min(cols, left + window);
+
+                if (mode == Mode.MAX) {
+                    //Ties go to the first maximum in row-major order
+                    double max = Double.NEGATIVE_INFINITY;
+                    int position = fromRow * cols + fromCol;
+                    for (int i = fromRow; i < toRow; i++) {
+                        int index = input.index(i, fromCol);
+                        for (int j = fromCol; j < toCol; j++, index += colStride) {
+                            if (data[index] > max) {
+                                max = data[index];
+                                position = i * cols + j;
+                            }
+                        }
+                    }
+                    matrix.set(r, c, max);
+                    if (argmax != null) {
+                        argmax[offset++] = position;
+                    }
+                } else {
+                    double sum = 0;
+                    for (int i = fromRow; i < toRow; i++) {
+                        int index = input.index(i, fromCol);
+                        for (int j = fromCol; j < toCol; j++, index += colStride) {
+                            sum += data[index];
+                        }
+                    }
+                    matrix.set(r, c, sum / ((toRow - fromRow) * (toCol - fromCol)));
+                }
+            }
+        }
+    }
+
+    /**
+     * The default pooling, unrolled
+     */
+    private static void maxPool2x2(final Matrix input, final Matrix matrix, final int[] argmax, int offset) {
+        final double[] data = input.getData();
+        final int cols = input.getCols();
+        final int rowStride = input.getRowStride();
+        final int colStride = input.getColStride();
+        for (int r = 0; r < matrix.getRows(); r++) {
+            for (int c = 0; c < matrix.getCols(); c++) {
+                final int topLeft = input.index(2 * r, 2 * c);
+                double max = data[topLeft];
+                int position = 2 * r * cols + 2 * c;
+                if (data[topLeft + colStride] > max) {
+                    max = data[topLeft + colStride];
+                    position = 2 * r * cols + 2 * c + 1;
+                }
+                if (data[topLeft + rowStride] > max) {
+                    max = data[topLeft + rowStride];
+                    position = (2 * r + 1) * cols + 2 * c;
+                }
+                if (data[topLeft + rowStride + colStride] > max) {
+                    max = data[topLeft + rowStride + colStride];
+                    position = (2 * r + 1) * cols + 2 * c + 1;
+                }
+                matrix.set(r, c, max);
+                if (argmax != null) {
+                    argmax[offset++] = position;
+                }
+            }
+        }
+    }
+
     public Matrix[] forwardPropagation(final Matrix[] matrices) {
-        this.inputs = matrices;
-        final Matrix[] output = new Matrix[matrices.length];
+        return forwardPropagation(context(), matrices);
+    }
+
+    public Matrix[] backwardsPropagation(final Matrix[] delta) {
+        return backwardsPropagation(context(), delta);
+    }
+
+    /**
+     * Pools every map. Max-pooling records the position of every window's maximum for the backward pass
+     *
+     * @param context  the pass's context
+     * @param matrices the maps
+     * @return the pooled maps, valid until the context's next forward pass
+     */
+    public Matrix[] forwardPropagation(final @NotNull Context context, final Matrix[] matrices) {
+        context.inputs = matrices;
+        //All pooled maps share one contiguous buffer
+        final Matrix[] output = context.workspace.stack("output", matrices.length, outputSize(matrices[0].getRows()), outputSize(matrices[0].getCols()), Init.UNINITIALIZED);
+        final int windows = output[0].getRows() * output[0].getCols();
+        int[] argmax = null;
+        if (mode == Mode.MAX) {
+            if (context.argmax == null || context.argmax.length != matrices.length * windows) {
+                context.argmax = new int[matrices.length * windows];
+            }
+            argmax = context.argmax;
+        }
 
         for (int i = 0; i < matrices.length; i++) {
-            output[i] = maxPool(matrices[i]);
+            pool(matrices[i], output[i], argmax, i * windows);
         }
-        this.output = output;
+        context.output = output;
         return output;
     }
 
-    public Matrix[] backwardsPropagation(final Matrix[] delta) {
+    /**
+     * Routes every pooled value's error back to the values it was computed from: max-pooling passes it to the
+     * position of the window's maximum recorded by the forward pass, average pooling spreads it evenly over the window
+     *
+     * @param context the pass's context
+     * @param delta   the derivative of the loss with respect to the pooled maps
+     * @return the derivative of the loss with respect to the input maps, valid until the context's next backward pass
+     */
+    public Matrix[] backwardsPropagation(final @NotNull Context context, final Matrix[] delta) {
+        final Matrix[] inputs = context.inputs;
+        final Matrix[] output = context.output;
         if (output.length != delta.length)
             throw new IllegalArgumentException("Matrix size mismatch. @PoolingLayer#backwardsPropagation Input was " + delta.length + ", expected " + output.length);
 
-        final int p = 2;
-        final int s = 2;
-        //New inputs
-        final Matrix[] newInputs = new Matrix[inputs.length];
+        final int rows = inputs[0].getRows();
+        final int cols = inputs[0].getCols();
+        final Matrix[] newInputs = context.workspace.stack("deltaInput", inputs.length, rows, cols,
+                mode == Mode.GLOBAL_AVERAGE ? Init.UNINITIALIZED : Init.ZEROS);
 
         for (int i = 0; i < inputs.length; i++) {
-            final Matrix input = inputs[i];
-            newInputs[i] = new Matrix(input.getRows(), input.getCols());
-            newInputs[i].fillZeros();
-
-            for (int l = 0; l < delta.length; l++) {
-                for (int r = 0; r + p < input.getRows(); r += s) {
-                    for (int c = 0; c + p < input.getCols(); c += s) {
-                        //Same size matrix, as the output
-                        final Matrix subMatrix = input.subMatrix(r, c, p, p);
-                        final Matrix deltaMatrix = delta[l];
-                        //Find the max value in the submatrix
-                        final double maxValue = subMatrix.maxValue();
-                        //Find the index of the max value
-                        final int[] maxIndex = subMatrix.indexOf(maxValue).orElse(new int[]{0, 0});
-                        //Set the value of the submatrix to the delta value
-                        newInputs[i].set(r + maxIndex[0], c + maxIndex[1], deltaMatrix.get(maxIndex[0], maxIndex[1]));
-                        //newInputs[i].set(maxIndex[0] + r, maxIndex[1] + c, deltaMatrix.get(row, column));
+            final Matrix deltaMatrix = delta[i];
+            final Matrix newInput = newInputs[i];
+            final double[] data = newInput.getData();
+            if (mode == Mode.GLOBAL_AVERAGE) {
+                newInput.fill(deltaMatrix.get(0, 0) / (rows * cols));
+                continue;
+            }
+            int cell = i * deltaMatrix.getRows() * deltaMatrix.getCols();
+            for (int r = 0; r < deltaMatrix.getRows(); r++) {
+                final int top = r * stride - padding;
+                final int fromRow = Math.max(0, top);
+                final int toRow = Math.min(rows, top + window);
+                for (int c = 0; c < deltaMatrix.getCols(); c++) {
+                    if (mode == Mode.MAX) {
+                        //Windows may overlap, so errors are added
+                        final int position = context.argmax[cell++];
+                        data[newInput.index(position / cols, position % cols)] += deltaMatrix.get(r, c);
+                        continue;
+                    }
+                    final int left = c * stride - padding;
+                    final int fromCol = Math.max(0, left);
+                    final int toCol = Math.min(cols, left + window);
+                    final double share = deltaMatrix.get(r, c) / ((toRow - fromRow) * (toCol - fromCol));
+                    for (int y = fromRow; y < toRow; y++) {
+                        for (int x = fromCol; x < toCol; x++) {
+                            data[newInput.index(y, x)] += share;
+                        }
                     }
                 }
             }
         }
         return newInputs;
     }
+
+    /**
+     * @return the maps produced by the calling thread's last forward pass
+     */
+    public Matrix[] getOutput() {
+        return context().output;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public int getPadding() {
+        return padding;
+    }
+
+    /**
+     * The state of passes through the layer. A context serves one pass at a time and must not be shared between threads
+     */
+    public static final class Context {
+
+        private final Workspace workspace = new Workspace();
+
+        private Matrix[] inputs;
+        private Matrix[] output;
+        /**
+         * The position of every window's maximum in its map in the last forward pass, map after map and row by row
+         */
+        private int[] argmax;
+
+        private Context() {
+        }
+
+        /**
+         * @return the maps produced by the context's last forward pass
+         */
+        public Matrix[] getOutput() {
+            return output;
+        }
+    }
 }
@@ -0,0 +1,125 @@
+package net.bplaced.abzzezz.network.convolution;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.Supplier;
+
+/**
+ * The available convolution engines and the rule which one a layer uses
+ */
+public enum ConvolutionAlgorithm {
+
+    DIRECT(DirectConvolution::new),
+    GEMM(GemmConvolution::new),
+    WINOGRAD_2X2(() -> new WinogradConvolution(2)),
+    WINOGRAD_4X4(() -> new WinogradConvolution(4)),
+    FFT(FftConvolution::new);
+
+    private final Supplier<ConvolutionEngine> factory;
+
+    ConvolutionAlgorithm(final Supplier<ConvolutionEngine> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @return a new engine, engines keep per-layer state and must not be shared
+     */
+    public @NotNull ConvolutionEngine create() {
+        return factory.get();
+    }
+
+    /*
+    Cost model, in nanoseconds per unit of work as measured on one core. Only their ratios matter
+     */
+    /**
+     * Sliding-window multiply-add
+     */
+    private static final double DIRECT_MULTIPLY_ADD = 1.4;
+    /**
+     * Multiply-add inside the blocked GEMM
+     */
+    private static final double GEMM_MULTIPLY_ADD = 0.65;
+    /**
+     * Writing one value of the unrolled columns
+     */
+    private static final double GEMM_UNROLL = 2;
+    /**
+     * One value of a plane per FFT pass, a 2d transform of a plane of n * n values costs n² * log2(n) units
+     */
+    private static final double FFT_BUTTERFLY = 5;
+    /**
+     * One complex multiply-add of two spectra
+     */
+    private static final double FFT_PRODUCT = 3;
+    /**
+     * One value of a transformed Winograd input tile, including reading the tile from the map
+     */
+    private static final double WINOGRAD_INPUT = 30;
+    /**
+     * One value of a transformed Winograd output tile, including the inverse transform and writing the tile back
+     */
+    private static final double WINOGRAD_OUTPUT = 10;
+
+    /**
+     * Picks the algorithm for a layer by comparing the estimated costs of a forward pass per sample:
+     * direct and GEMM grow with filters * channels * n² * ⨍², FFT with the transform size N² * log2(N), largely
+     * independent of ⨍. 3x3 kernels can also use Winograd, whose transforms grow with the number of tiles * α² and
+     * whose products are α² GEMMs of [filters][channels] * [channels][tiles]. Its transforms are costly enough that
+     * it only pays off for many filters and channels
+     *
+     * @param filters    the number of filters, i.e. output channels
+     * @param channels   the number of input channels
+     * @param kernelRows the kernel's rows
+     * @param kernelCols the kernel's columns
+     * @param inputRows  the input map's rows
+     * @param inputCols  the input map's columns
+     * @return the algorithm to use
+     */
+    public static @NotNull ConvolutionAlgorithm select(final int filters, final int channels,
+                                                       final int kernelRows, final int kernelCols,
+                                                       final int inputRows, final int inputCols) {
+        final double windows = (double) channels * inputRows * inputCols * kernelRows * kernelCols;
+        final double direct = filters * windows * DIRECT_MULTIPLY_ADD;
+        final double gemm = filters * windows * GEMM_MULTIPLY_ADD + windows * GEMM_UNROLL;
+
+        //One forward transform per input map and one inverse transform per output map, two maps per complex
+        //transform, the kernels' spectra are cached
+        final int size = FftConvolution.transformSize(Math.max(inputRows, inputCols), Math.max(kernelRows, kernelCols));
+        final double plane = (double) size * size;
+        final double transforms = (channels + 1) / 2 + (filters + 1) / 2;
+        final double fft = transforms * plane * Integer.numberOfTrailingZeros(size) * FFT_BUTTERFLY
+                + filters * channels * plane * FFT_PRODUCT;
+
+        ConvolutionAlgorithm best = DIRECT;
+        double cost = direct;
+        if (gemm < cost) {
+            best = GEMM;
+            cost = gemm;
+        }
+        if (fft < cost) {
+            best = FFT;
+            cost = fft;
+        }
+        if (WinogradConvolution.supports(kernelRows, kernelCols)) {
+            for (final ConvolutionAlgorithm winograd : new ConvolutionAlgorithm[]{WINOGRAD_2X2, WINOGRAD_4X4}) {
+                final double estimate = winograd(winograd == WINOGRAD_2X2 ? 2 : 4, filters, channels, inputRows, inputCols);
+                if (estimate < cost) {
+                    best = winograd;
+                    cost = estimate;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param tile the output tile's size m
+     * @return the estimated cost of a Winograd F(m x m, 3 x 3) forward pass per sample
+     */
+    private static double winograd(final int tile, final int filters, final int channels, final int inputRows, final int inputCols) {
+        final int alpha = tile + 2;
+        //Partial tiles at the edges cost as much as full ones
+        final double values = (double) ((inputRows + tile - 1) / tile) * ((inputCols + tile - 1) / tile) * alpha * alpha;
+        return values * (channels * WINOGRAD_INPUT + filters * WINOGRAD_OUTPUT + filters * channels * GEMM_MULTIPLY_ADD);
+    }
+}
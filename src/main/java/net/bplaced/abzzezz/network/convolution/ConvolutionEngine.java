@@ -0,0 +1,65 @@
+package net.bplaced.abzzezz.network.convolution;
+
+import net.bplaced.abzzezz.util.math.matrix.Matrix;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Computes the forward and backward pass of a convolution layer.
+ * <p>
+ * Every sample has C input channels, every one of the layer's filters holds one kernel per input channel. A filter o
+ * convolves each channel c with its kernel (o, c), with "same" padding p = (⨍ - 1) / 2 and a stride of one, and sums
+ * the results over the channels into one output channel:
+ * output[o * samples + n](i, j) = Σc Σa Σb input[n * C + c](i - p + a, j - p + b) * kernel[o * C + c](a, b)
+ * <p>
+ * Implementations may keep state between a forward pass and the backward pass following it,
+ * an engine must therefore only ever be used by one layer.
+ */
+public interface ConvolutionEngine {
+
+    /**
+     * Convolves every sample with every filter
+     *
+     * @param input    the samples' channels, all of the same size, ordered [sample][channel]
+     * @param channels the number of channels C per sample
+     * @param kernels  the filters' kernels, all of the same size, ordered [filter][channel]
+     * @param output   the filters * samples output maps, ordered [filter][sample]
+     */
+    void forward(@NotNull Matrix[] input, int channels, @NotNull Matrix[] kernels, @NotNull Matrix[] output);
+
+    /**
+     * Computes the gradients of the last forward pass
+     *
+     * @param input        the input maps of the forward pass
+     * @param channels     the number of channels per sample
+     * @param kernels      the kernels of the forward pass
+     * @param delta        the gradient with respect to each output map, ordered [filter][sample]
+     * @param deltaKernels receives the gradient with respect to each kernel
+     * @param deltaInput   receives the gradient with respect to each input map
+     */
+    void backward(@NotNull Matrix[] input, int channels, @NotNull Matrix[] kernels, @NotNull Matrix[] delta,
+                  @NotNull Matrix[] deltaKernels, @NotNull Matrix[] deltaInput);
+
+    /**
+     * Discards everything derived from the kernels, e.g. pre-transformed kernels.
+     * Has to be called whenever the kernels' values are changed in place
+     */
+    default void invalidate() {
+    }
+
+    /**
+     * @param kernelSize the kernel's size ⨍
+     * @return the padding which keeps the output the same size as the input
+     */
+    static int padding(final int kernelSize) {
+        return (kernelSize - 1) / 2;
+    }
+
+    /**
+     * @param inputSize  the input's size n
+     * @param kernelSize the kernel's size ⨍
+     * @return the output's size n + 2p - ⨍ + 1
+     */
+    static int outputSize(final int inputSize, final int kernelSize) {
+        return inputSize + 2 * padding(kernelSize) - kernelSize + 1;
+    }
+}
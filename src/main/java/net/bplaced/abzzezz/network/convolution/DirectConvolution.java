@@ -0,0 +1,91 @@
+package net.bplaced.abzzezz.network.convolution;
+
+import net.bplaced.abzzezz.util.math.matrix.Matrix;
+import net.bplaced.abzzezz.util.math.matrix.MatrixUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The textbook sliding-window convolution. Every output pixel is the sum over the channels of each kernel multiplied
+ * with the window under it, read in place from the input. Slow, but simple enough to serve as the reference for the other engines
+ */
+public class DirectConvolution implements ConvolutionEngine {
+
+    /**
+     * Convolves the input with the kernel and writes the feature map into a pre-allocated matrix
+     *
+     * @param input  the input matrix
+     * @param kernel the kernel to convolve with
+     * @param output the matrix to write the result to
+     */
+    public static void convolve(@NotNull final Matrix input, @NotNull final Matrix kernel, @NotNull final Matrix output) {
+        final int p = ConvolutionEngine.padding(kernel.getRows());
+        for (int i = 0; i < output.getRows(); i++) {
+            for (int j = 0; j < output.getCols(); j++) {
+                output.set(i, j, MatrixUtil.sumAndMultiply(input, i - p, j - p, kernel));
+            }
+        }
+    }
+
+    @Override
+    public void forward(@NotNull final Matrix[] input, final int channels, @NotNull final Matrix[] kernels, @NotNull final Matrix[] output) {
+        final int samples = input.length / channels;
+        final int filters = kernels.length / channels;
+        final int p = ConvolutionEngine.padding(kernels[0].getRows());
+        for (int o = 0; o < filters; o++) {
+            for (int n = 0; n < samples; n++) {
+                final Matrix map = output[o * samples + n];
+                for (int i = 0; i < map.getRows(); i++) {
+                    for (int j = 0; j < map.getCols(); j++) {
+                        double sum = 0;
+                        for (int c = 0; c < channels; c++) {
+                            sum += MatrixUtil.sumAndMultiply(input[n * channels + c], i - p, j - p, kernels[o * channels + c]);
+                        }
+                        map.set(i, j, sum);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void backward(@NotNull final Matrix[] input, final int channels, @NotNull final Matrix[] kernels, @NotNull final Matrix[] delta,
+                         @NotNull final Matrix[] deltaKernels, @NotNull final Matrix[] deltaInput) {
+        for (final Matrix matrix : deltaKernels) {
+            matrix.fillZeros();
+        }
+        for (final Matrix matrix : deltaInput) {
+            matrix.fillZeros();
+        }
+        final int samples = input.length / channels;
+        final int filters = kernels.length / channels;
+        final int kernelRows = kernels[0].getRows();
+        final int kernelCols = kernels[0].getCols();
+        final int p = ConvolutionEngine.padding(kernelRows);
+
+        for (int o = 0; o < filters; o++) {
+            for (int n = 0; n < samples; n++) {
+                final Matrix d = delta[o * samples + n];
+                for (int c = 0; c < channels; c++) {
+                    final Matrix map = input[n * channels + c];
+                    final Matrix kernel = kernels[o * channels + c];
+                    final Matrix deltaKernel = deltaKernels[o * channels + c];
+                    final Matrix deltaMap = deltaInput[n * channels + c];
+                    for (int i = 0; i < d.getRows(); i++) {
+                        for (int j = 0; j < d.getCols(); j++) {
+                            final double gradient = d.get(i, j);
+                            //Every tap which read an input pixel passes the gradient back to it and to the kernel
+                            for (int a = Math.max(0, p - i); a < kernelRows && i - p + a < map.getRows(); a++) {
+                                for (int b = Math.max(0, p - j); b < kernelCols && j - p + b < map.getCols(); b++) {
+                                    final int row = i - p + a;
+                                    final int col = j - p + b;
+                                    deltaKernel.set(a, b, deltaKernel.get(a, b) + gradient * map.get(row, col));
+                                    deltaMap.set(row, col, deltaMap.get(row, col) + gradient * kernel.get(a, b));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package net.bplaced.abzzezz.network.convolution;
+
+import net.bplaced.abzzezz.util.math.Fft;
+import net.bplaced.abzzezz.util.math.matrix.Matrix;
+import net.bplaced.abzzezz.util.math.tensor.Init;
+import net.bplaced.abzzezz.util.math.tensor.Workspace;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Convolution as an element-wise product of spectra, for large kernels.
+ * <p>
+ * Maps and kernels are zero-padded to a power-of-two plane of at least n + ⨍ - 1 pixels, large enough that the
+ * circular convolution of the FFT never wraps the padded border onto the output. The kernel is placed mirrored
+ * around the origin, so the product computes the same sliding-window sum as {@link DirectConvolution}.
+ * <p>
+ * Every input map is transformed once per forward pass and reused for all filters, the kernels' spectra are cached
+ * until they are updated. The sum over the channels is taken on the spectra, Y[o][n] = Σc X[n][c] ⊙ H[o][c], so there
+ * is one inverse transform per output map. Since all maps are real, two of them are always transformed together as
+ * the real and imaginary part of one complex plane, and two real results are recovered from one inverse transform.
+ * <p>
+ * The backward pass stays in the frequency domain as well:
+ * the input gradient is Σo Δ[o][n] ⊙ conj(H[o][c]), the kernel gradient is Σn Δ[o][n] ⊙ conj(X[n][c]), one inverse
+ * transform per input map and per kernel.
+ */
+public class FftConvolution implements ConvolutionEngine {
+
+    private final Workspace workspace = new Workspace();
+
+    private Fft fft;
+
+    /**
+     * The kernels the cached kernel spectra belong to, null if the cache is invalid
+     */
+    private Matrix[] transformedKernels;
+    /**
+     * The input the current input spectra belong to
+     */
+    private Matrix[] transformedInput;
+
+    /**
+     * @param inputSize  the input map's size n
+     * @param kernelSize the kernel's size ⨍
+     * @return the side length of the planes the FFT is computed on
+     */
+    public static int transformSize(final int inputSize, final int kernelSize) {
+        return Fft.size(inputSize + kernelSize - 1);
+    }
+
+    @Override
+    public void forward(@NotNull final Matrix[] input, final int channels, @NotNull final Matrix[] kernels, @NotNull final Matrix[] output) {
+        prepare(input[0], kernels[0]);
+        final int size = fft.getSize();
+        final double scale = 1. / (size * size);
+        final int samples = input.length / channels;
+        transformInput(input);
+        transformKernels(kernels);
+
+        final Matrix xr = spectrum("inputReal", input.length);
+        final Matrix xi = spectrum("inputImaginary", input.length);
+        final Matrix hr = spectrum("kernelReal", kernels.length);
+        final Matrix hi = spectrum("kernelImaginary", kernels.length);
+        final double[] zr = plane("planeReal");
+        final double[] zi = plane("planeImaginary");
+        final double[] yr = plane("resultReal");
+        final double[] yi = plane("resultImaginary");
+
+        //Two output maps per inverse transform, the second one as the imaginary part
+        final int total = output.length;
+        for (int q = 0; q < total; q += 2) {
+            Arrays.fill(zr, 0);
+            Arrays.fill(zi, 0);
+            for (int c = 0; c < channels; c++) {
+                multiplyAdd(zr, zi, xr, xi, q % samples * channels + c, hr, hi, q / samples * channels + c, false, false);
+                if (q + 1 < total) {
+                    multiplyAdd(zr, zi, xr, xi, (q + 1) % samples * channels + c, hr, hi, (q + 1) / samples * channels + c, false, true);
+                }
+            }
+            fft.inverse2d(zr, zi, output[q].getRows(), yr, yi);
+            write(yr, output[q], scale);
+            if (q + 1 < total) {
+                write(yi, output[q + 1], scale);
+            }
+        }
+    }
+
+    @Override
+    public void backward(@NotNull final Matrix[] input, final int channels, @NotNull final Matrix[] kernels, @NotNull final Matrix[] delta,
+                         @NotNull final Matrix[] deltaKernels, @NotNull final Matrix[] deltaInput) {
+        prepare(input[0], kernels[0]);
+        final int size = fft.getSize();
+        final double scale = 1. / (size * size);
+        final int samples = input.length / channels;
+        final int filters = kernels.length / channels;
+        if (input != transformedInput) {
+            transformInput(input);
+        }
+        transformKernels(kernels);
+        transform(delta, "delta", false);
+
+        final Matrix xr = spectrum("inputReal", input.length);
+        final Matrix xi = spectrum("inputImaginary", input.length);
+        final Matrix hr = spectrum("kernelReal", kernels.length);
+        final Matrix hi = spectrum("kernelImaginary", kernels.length);
+        final Matrix dr = spectrum("deltaReal", delta.length);
+        final Matrix di = spectrum("deltaImaginary", delta.length);
+        final double[] zr = plane("planeReal");
+        final double[] zi = plane("planeImaginary");
+        final double[] yr = plane("resultReal");
+        final double[] yi = plane("resultImaginary");
+
+        //Input gradient: Σo Δ[o][n] ⊙ conj(H[o][c]), two input maps per inverse transform
+        for (int m = 0; m < input.length; m += 2) {
+            Arrays.fill(zr, 0);
+            Arrays.fill(zi, 0);
+            for (int o = 0; o < filters; o++) {
+                multiplyAdd(zr, zi, dr, di, o * samples + m / channels, hr, hi, o * channels + m % channels, true, false);
+                if (m + 1 < input.length) {
+                    multiplyAdd(zr, zi, dr, di, o * samples + (m + 1) / channels, hr, hi, o * channels + (m + 1) % channels, true, true);
+                }
+            }
+            fft.inverse2d(zr, zi, deltaInput[m].getRows(), yr, yi);
+            write(yr, deltaInput[m], scale);
+            if (m + 1 < input.length) {
+                write(yi, deltaInput[m + 1], scale);
+            }
+        }
+
+        //Kernel gradient: Σn Δ[o][n] ⊙ conj(X[n][c]), read back from the mirrored kernel positions
+        for (int k = 0; k < kernels.length; k += 2) {
+            Arrays.fill(zr, 0);
+            Arrays.fill(zi, 0);
+            for (int n = 0; n < samples; n++) {
+                multiplyAdd(zr, zi, dr, di, k / channels * samples + n, xr, xi, n * channels + k % channels, true, false);
+                if (k + 1 < kernels.length) {
+                    multiplyAdd(zr, zi, dr, di, (k + 1) / channels * samples + n, xr, xi, n * channels + (k + 1) % channels, true, true);
+                }
+            }
+            fft.inverse2d(zr, zi, size, yr, yi);
+            readKernel(yr, deltaKernels[k], scale);
+            if (k + 1 < kernels.length) {
+                readKernel(yi, deltaKernels[k + 1], scale);
+            }
+        }
+    }
+
+    @Override
+    public void invalidate() {
+        transformedKernels = null;
+    }
+
+    /**
+     * Creates the transform for the layer's shape, a new shape discards all cached spectra
+     */
+    private void prepare(final Matrix input, final Matrix kernel) {
+        final int size = transformSize(Math.max(input.getRows(), input.getCols()), Math.max(kernel.getRows(), kernel.getCols()));
+        if (fft == null || fft.getSize() != size) {
+            fft = new Fft(size);
+            transformedKernels = null;
+            transformedInput = null;
+        }
+    }
+
+    private void transformInput(final Matrix[] input) {
+        transform(input, "input", false);
+        transformedInput = input;
+    }
+
+    private void transformKernels(final Matrix[] kernels) {
+        if (transformedKernels != kernels) {
+            transform(kernels, "kernel", true);
+            transformedKernels = kernels;
+        }
+    }
+
+    /**
+     * @return the spectra of a number of maps, one map per row
+     */
+    private Matrix spectrum(final String name, final int maps) {
+        return workspace.matrix(name, maps, fft.getSize() * fft.getSize(), Init.UNINITIALIZED);
+    }
+
+    /**
+     * @return a scratch plane of size * size values
+     */
+    private double[] plane(final String name) {
+        return workspace.matrix(name, fft.getSize(), fft.getSize(), Init.UNINITIALIZED).getData();
+    }
+
+    /**
+     * Transforms the maps two at a time into the spectra name + "Real" and name + "Imaginary".
+     * With z = a + i b and Z its spectrum, the spectra of a and b are
+     * A = (Z[f] + conj(Z[-f])) / 2 and B = (Z[f] - conj(Z[-f])) / 2i
+     *
+     * @param mirrored if true, the maps are kernels and placed mirrored around the origin
+     */
+    private void transform(final Matrix[] maps, final String name, final boolean mirrored) {
+        final int size = fft.getSize();
+        final Matrix re = spectrum(name + "Real", maps.length);
+        final Matrix im = spectrum(name + "Imaginary", maps.length);
+        final double[] red = re.getData();
+        final double[] imd = im.getData();
+        final double[] zr = plane("planeReal");
+        final double[] zi = plane("planeImaginary");
+        final double[] sr = plane("resultReal");
+        final double[] si = plane("resultImaginary");
+
+        for (int m = 0; m < maps.length; m += 2) {
+            final boolean pair = m + 1 < maps.length;
+            place(maps[m], zr, mirrored);
+            if (pair) {
+                place(maps[m + 1], zi, mirrored);
+            } else {
+                Arrays.fill(zi, 0);
+            }
+            fft.forward2d(zr, zi, mirrored ? size : maps[m].getRows(), sr, si);
+
+            final int a = re.index(m, 0);
+            final int b = pair ? re.index(m + 1, 0) : 0;
+            for (int v = 0; v < size; v++) {
+                final int mirrorRow = ((size - v) & (size - 1)) * size;
+                for (int u = 0; u < size; u++) {
+                    final int f = v * size + u;
+                    final int mirror = mirrorRow + ((size - u) & (size - 1));
+                    red[a + f] = (sr[f] + sr[mirror]) * .5;
+                    imd[a + f] = (si[f] - si[mirror]) * .5;
+                    if (pair) {
+                        red[b + f] = (si[f] + si[mirror]) * .5;
+                        imd[b + f] = (sr[mirror] - sr[f]) * .5;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a map into a zeroed plane, either at the origin or, for kernels, mirrored so that the tap (a, b)
+     * lands on (p - a, p - b) modulo the plane's size
+     */
+    private void place(final Matrix map, final double[] plane, final boolean mirrored) {
+        final int size = fft.getSize();
+        Arrays.fill(plane, 0);
+        final int p = ConvolutionEngine.padding(map.getRows());
+        for (int r = 0; r < map.getRows(); r++) {
+            final int row = mirrored ? ((p - r) & (size - 1)) * size : r * size;
+            for (int c = 0; c < map.getCols(); c++) {
+                plane[row + (mirrored ? (p - c) & (size - 1) : c)] = map.get(r, c);
+            }
+        }
+    }
+
+    /**
+     * z += A[a] * B[b] (or * conj(B[b])), or z += i * A[a] * B[b] to place the product in the imaginary part
+     */
+    private static void multiplyAdd(final double[] zr, final double[] zi,
+                                    final Matrix ar, final Matrix ai, final int a,
+                                    final Matrix br, final Matrix bi, final int b,
+                                    final boolean conjugate, final boolean imaginary) {
+        final double[] ard = ar.getData();
+        final double[] aid = ai.getData();
+        final double[] brd = br.getData();
+        final double[] bid = bi.getData();
+        final int aOffset = ar.index(a, 0);
+        final int bOffset = br.index(b, 0);
+        final double sign = conjugate ? -1 : 1;
+        for (int f = 0; f < zr.length; f++) {
+            final double xr = ard[aOffset + f];
+            final double xi = aid[aOffset + f];
+            final double yr = brd[bOffset + f];
+            final double yi = sign * bid[bOffset + f];
+            final double pr = xr * yr - xi * yi;
+            final double pi = xr * yi + xi * yr;
+            if (imaginary) {
+                zr[f] -= pi;
+                zi[f] += pr;
+            } else {
+                zr[f] += pr;
+                zi[f] += pi;
+            }
+        }
+    }
+
+    /**
+     * Copies the top-left corner of a plane into the map, normalizing the inverse transform
+     */
+    private void write(final double[] plane, final Matrix map, final double scale) {
+        final int size = fft.getSize();
+        for (int r = 0; r < map.getRows(); r++) {
+            for (int c = 0; c < map.getCols(); c++) {
+                map.set(r, c, plane[r * size + c] * scale);
+            }
+        }
+    }
+
+    /**
+     * Reads a kernel from its mirrored position in the plane, the inverse of {@link #place(Matrix, double[], boolean)}
+     */
+    private void readKernel(final double[] plane, final Matrix kernel, final double scale) {
+        final int size = fft.getSize();
+        final int p = ConvolutionEngine.padding(kernel.getRows());
+        for (int r = 0; r < kernel.getRows(); r++) {
+            for (int c = 0; c < kernel.getCols(); c++) {
+                kernel.set(r, c, plane[((p - r) & (size - 1)) * size + ((p - c) & (size - 1))] * scale);
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package net.bplaced.abzzezz.network.convolution;
+
+import net.bplaced.abzzezz.util.math.MathUtil;
+import net.bplaced.abzzezz.util.math.matrix.Matrix;
+import net.bplaced.abzzezz.util.math.simd.ArrayMath;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Multi-channel convolution, bias, activation and 2x2 max-pooling with a stride of 2 in one pass, for inference.
+ * <p>
+ * The convolution is computed two output rows at a time, summed over the channels, into a strip, which is pooled
+ * into one row of the pooled map right away, so the full-resolution feature maps are never written. Rows and columns
+ * which the pooling drops, the last ones of maps of odd size, are not computed at all.
+ * <p>
+ * The bias is constant within a map and every activation function is non-decreasing, so both commute with the
+ * maximum and are applied once per pooled value instead of once per feature map value:
+ * max(act(x + b)) = act(max(x) + b)
+ */
+public class FusedConvolutionPool {
+
+    /**
+     * @param size the feature map's size
+     * @return the pooled map's size, (size - 2) / 2 + 1
+     */
+    public static int pooledSize(final int size) {
+        return (size - 2) / 2 + 1;
+    }
+
+    /**
+     * Convolves every sample with every filter like {@link ConvolutionEngine#forward} and pools the results
+     *
+     * @param input      the samples' channels, all of the same size, ordered [sample][channel]
+     * @param channels   the number of channels per sample
+     * @param kernels    the filters' kernels, all of the same size, ordered [filter][channel]
+     * @param bias       one value per filter, added to its maps, null for none
+     * @param activation applied to the pooled values
+     * @param output     the filters * samples pooled maps, ordered [filter][sample]
+     * @param strip      a buffer of at least 2 * the feature maps' columns values
+     */
+    public static void forward(final @NotNull Matrix[] input, final int channels, final @NotNull Matrix[] kernels, final double @Nullable [] bias,
+                               final @NotNull MathUtil.ActivationFunction activation, final @NotNull Matrix[] output,
+                               final double @NotNull [] strip) {
+        final int samples = input.length / channels;
+        for (int o = 0; o < kernels.length / channels; o++) {
+            final double b = bias == null ? 0 : bias[o];
+            for (int n = 0; n < samples; n++) {
+                convolvePool(input, n * channels, kernels, o * channels, channels, b, activation, output[o * samples + n], strip);
+            }
+        }
+    }
+
+    /**
+     * @param firstMap    the index of the sample's first channel
+     * @param firstKernel the index of the filter's first kernel
+     */
+    private static void convolvePool(final Matrix[] input, final int firstMap, final Matrix[] kernels, final int firstKernel,
+                                     final int channels, final double bias, final MathUtil.ActivationFunction activation,
+                                     final Matrix output, final double[] strip) {
+        final int kernelRows = kernels[firstKernel].getRows();
+        final int kernelCols = kernels[firstKernel].getCols();
+        final int rowPadding = ConvolutionEngine.padding(kernelRows);
+        final int colPadding = ConvolutionEngine.padding(kernelCols);
+        final int inputRows = input[firstMap].getRows();
+        final int inputCols = input[firstMap].getCols();
+        final int cols = ConvolutionEngine.outputSize(inputCols, kernelCols);
+
+        for (int o = 0; o < output.getRows(); o++) {
+            //The feature map's rows 2o and 2o + 1, one after another in the strip, summed over the channels
+            Arrays.fill(strip, 0, 2 * cols, 0);
+            for (int c = 0; c < channels; c++) {
+                final Matrix map = input[firstMap + c];
+                final Matrix kernel = kernels[firstKernel + c];
+                final double[] data = map.getData();
+                final int colStride = map.getColStride();
+                for (int half = 0; half < 2; half++) {
+                    final int base = half * cols;
+                    final int i = 2 * o + half;
+                    for (int a = 0; a < kernelRows; a++) {
+                        final int row = i - rowPadding + a;
+                        if (row < 0 || row >= inputRows) {
+                            continue;
+                        }
+                        for (int b = 0; b < kernelCols; b++) {
+                            final double weight = kernel.get(a, b);
+                            //Output column j reads input column j - colPadding + b, skip the columns reading the padding
+                            final int from = Math.max(0, colPadding - b);
+                            final int to = Math.min(cols, inputCols + colPadding - b);
+                            if (colStride == 1) {
+                                ArrayMath.axpy(weight, data, map.index(row, from - colPadding + b), strip, base + from, to - from);
+                            } else {
+                                for (int j = from; j < to; j++) {
+                                    strip[base + j] += weight * data[map.index(row, j - colPadding + b)];
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+
+            for (int q = 0; q < output.getCols(); q++) {
+                final int j = 2 * q;
+                final double max = Math.max(Math.max(strip[j], strip[j + 1]), Math.max(strip[cols + j], strip[cols + j + 1]));
+                output.set(o, q, activation.apply(max + bias));
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package net.bplaced.abzzezz.network.convolution;
+
+import net.bplaced.abzzezz.util.math.matrix.Gemm;
+import net.bplaced.abzzezz.util.math.matrix.Matrix;
+import net.bplaced.abzzezz.util.math.matrix.MatrixUtil;
+import net.bplaced.abzzezz.util.math.tensor.Init;
+import net.bplaced.abzzezz.util.math.tensor.Workspace;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Lowers the convolution of a whole layer to one matrix multiplication (im2col).
+ * <p>
+ * Every window the filters slide over is unrolled into a column of the matrix "columns" of shape
+ * [channels * ⨍ * ⨍][samples * n * n], one ⨍ * ⨍ block of rows per channel. The filters are packed as the rows of a
+ * matrix of shape [filters][channels * ⨍ * ⨍], so the product sums over the channels as it sums over the taps.
+ * The product is of shape [filters][samples * n * n], which is exactly the layer's output stack ordered [filter][sample].
+ * <p>
+ * The backward pass reuses the unrolled columns of the forward pass right before it, otherwise it unrolls its input again:
+ * the kernel gradient is delta * columns^T, the input gradient is weights^T * delta, folded back onto the input maps (col2im).
+ */
+public class GemmConvolution implements ConvolutionEngine {
+
+    private final Workspace workspace = new Workspace();
+
+    /**
+     * Whether the columns hold the input of the last forward pass, which the following backward pass may reuse.
+     * The input's array cannot tell, the layers' workspaces hand out the same stack with new values every pass
+     */
+    private boolean columnsValid;
+
+    @Override
+    public void forward(@NotNull final Matrix[] input, final int channels, @NotNull final Matrix[] kernels, @NotNull final Matrix[] output) {
+        final Matrix columns = unroll(input, channels, kernels[0].getRows(), kernels[0].getCols());
+        final Matrix weights = pack(kernels, channels);
+        Gemm.multiply(weights, columns, MatrixUtil.asMatrix(output, weights.getRows(), columns.getCols()), false);
+        columnsValid = true;
+    }
+
+    @Override
+    public void backward(@NotNull final Matrix[] input, final int channels, @NotNull final Matrix[] kernels, @NotNull final Matrix[] delta,
+                         @NotNull final Matrix[] deltaKernels, @NotNull final Matrix[] deltaInput) {
+        final int kernelRows = kernels[0].getRows();
+        final int kernelCols = kernels[0].getCols();
+        final Matrix columns = columnsValid
+                ? workspace.matrix("columns", channels * kernelRows * kernelCols, input.length / channels * mapSize(input, kernelRows, kernelCols), Init.UNINITIALIZED)
+                : unroll(input, channels, kernelRows, kernelCols);
+        final Matrix weights = pack(kernels, channels);
+        final Matrix deltaMatrix = MatrixUtil.asMatrix(delta, weights.getRows(), columns.getCols());
+
+        //Kernel gradient: [filters][samples * n * n] * [samples * n * n][channels * ⨍ * ⨍]
+        final Matrix kernelGradient = workspace.matrix("kernelGradient", weights.getRows(), columns.getRows(), Init.UNINITIALIZED);
+        Gemm.multiply(deltaMatrix, columns.transposedView(), kernelGradient, false);
+        final int size = kernelRows * kernelCols;
+        for (int k = 0; k < kernels.length; k++) {
+            deltaKernels[k].copyFrom(kernelGradient.getData(), kernelGradient.index(k / channels, k % channels * size));
+        }
+
+        //Input gradient: [channels * ⨍ * ⨍][filters] * [filters][samples * n * n], then folded back onto the maps
+        final Matrix columnGradient = workspace.matrix("columnGradient", columns.getRows(), columns.getCols(), Init.UNINITIALIZED);
+        Gemm.multiply(weights.transposedView(), deltaMatrix, columnGradient, false);
+        fold(columnGradient, channels, deltaInput, kernelRows, kernelCols);
+        columnsValid = false;
+    }
+
+    /**
+     * A backward pass which does not follow a forward pass of this engine, for engines delegating only their backward
+     * pass here. The input is unrolled again whatever this engine computed before
+     */
+    void backwardWithoutForward(final Matrix[] input, final int channels, final Matrix[] kernels, final Matrix[] delta,
+                                final Matrix[] deltaKernels, final Matrix[] deltaInput) {
+        columnsValid = false;
+        backward(input, channels, kernels, delta, deltaKernels, deltaInput);
+    }
+
+    /**
+     * @return the number of output pixels per input map
+     */
+    private static int mapSize(final Matrix[] input, final int kernelRows, final int kernelCols) {
+        return ConvolutionEngine.outputSize(input[0].getRows(), kernelRows) * ConvolutionEngine.outputSize(input[0].getCols(), kernelCols);
+    }
+
+    /**
+     * Packs every filter's kernels as one row of a matrix of shape [filters][channels * ⨍ * ⨍]. Since the kernels are
+     * ordered [filter][channel], this is the kernels laid out back to back
+     */
+    private Matrix pack(final Matrix[] kernels, final int channels) {
+        final int size = kernels[0].getRows() * kernels[0].getCols();
+        final Matrix weights = workspace.matrix("weights", kernels.length / channels, channels * size, Init.UNINITIALIZED);
+        for (int k = 0; k < kernels.length; k++) {
+            kernels[k].copyTo(weights.getData(), weights.index(0, 0) + k * size);
+        }
+        return weights;
+    }
+
+    /**
+     * im2col: row (c * ⨍ + a) * ⨍ + b of the result holds, for every sample n and output pixel (i, j), the pixel
+     * (i - p + a, j - p + b) of the sample's channel c which the filters' tap (a, b) is multiplied with,
+     * or zero if it lies on the padding
+     */
+    private Matrix unroll(final Matrix[] input, final int channels, final int kernelRows, final int kernelCols) {
+        final int p = ConvolutionEngine.padding(kernelRows);
+        final int outputRows = ConvolutionEngine.outputSize(input[0].getRows(), kernelRows);
+        final int outputCols = ConvolutionEngine.outputSize(input[0].getCols(), kernelCols);
+        final int mapSize = outputRows * outputCols;
+        final int samples = input.length / channels;
+        final Matrix columns = workspace.matrix("columns", channels * kernelRows * kernelCols, samples * mapSize, Init.UNINITIALIZED);
+        final double[] cd = columns.getData();
+
+        for (int c = 0; c < channels; c++) {
+            for (int a = 0; a < kernelRows; a++) {
+                for (int b = 0; b < kernelCols; b++) {
+                    final int row = columns.index((c * kernelRows + a) * kernelCols + b, 0);
+                    for (int n = 0; n < samples; n++) {
+                        final Matrix map = input[n * channels + c];
+                        final double[] md = map.getData();
+                        //The range of output columns whose tap lies inside the map
+                        final int start = Math.max(0, p - b);
+                        final int end = Math.min(outputCols, map.getCols() + p - b);
+
+                        for (int i = 0; i < outputRows; i++) {
+                            final int destination = row + n * mapSize + i * outputCols;
+                            final int sourceRow = i - p + a;
+                            if (sourceRow < 0 || sourceRow >= map.getRows() || start >= end) {
+                                Arrays.fill(cd, destination, destination + outputCols, 0);
+                                continue;
+                            }
+                            Arrays.fill(cd, destination, destination + start, 0);
+                            final int source = map.index(sourceRow, start - p + b);
+                            if (map.getColStride() == 1) {
+                                System.arraycopy(md, source, cd, destination + start, end - start);
+                            } else {
+                                for (int j = 0; j < end - start; j++) {
+                                    cd[destination + start + j] = md[source + j * map.getColStride()];
+                                }
+                            }
+                            Arrays.fill(cd, destination + end, destination + outputCols, 0);
+                        }
+                    }
+                }
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * col2im: the inverse of {@link #unroll(Matrix[], int, int, int)}, every column entry is added onto the input pixel it was read from
+     */
+    private static void fold(final Matrix columns, final int channels, final Matrix[] deltaInput, final int kernelRows, final int kernelCols) {
+        for (final Matrix matrix : deltaInput) {
+            matrix.fillZeros();
+        }
+        final int p = ConvolutionEngine.padding(kernelRows);
+        final int outputRows = ConvolutionEngine.outputSize(deltaInput[0].getRows(), kernelRows);
+        final int outputCols = ConvolutionEngine.outputSize(deltaInput[0].getCols(), kernelCols);
+        final int mapSize = outputRows * outputCols;
+        final int samples = deltaInput.length / channels;
+        final double[] cd = columns.getData();
+
+        for (int c = 0; c < channels; c++) {
+            for (int a = 0; a < kernelRows; a++) {
+                for (int b = 0; b < kernelCols; b++) {
+                    final int row = columns.index((c * kernelRows + a) * kernelCols + b, 0);
+                    for (int n = 0; n < samples; n++) {
+                        final Matrix map = deltaInput[n * channels + c];
+                        final double[] md = map.getData();
+                        final int colStride = map.getColStride();
+                        final int start = Math.max(0, p - b);
+                        final int end = Math.min(outputCols, map.getCols() + p - b);
+
+                        for (int i = Math.max(0, p - a); i < outputRows && i - p + a < map.getRows(); i++) {
+                            final int source = row + n * mapSize + i * outputCols;
+                            final int destination = map.index(i - p + a, 0);
+                            for (int j = start; j < end; j++) {
+                                md[destination + (j - p + b) * colStride] += cd[source + j];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
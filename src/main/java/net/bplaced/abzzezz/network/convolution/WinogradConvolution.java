@@ -0,0 +1,337 @@
+package net.bplaced.abzzezz.network.convolution;
+
+import net.bplaced.abzzezz.util.math.matrix.Gemm;
+import net.bplaced.abzzezz.util.math.matrix.Matrix;
+import net.bplaced.abzzezz.util.math.tensor.Init;
+import net.bplaced.abzzezz.util.math.tensor.Workspace;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Winograd minimal filtering F(m x m, 3 x 3) for 3x3 kernels with a stride of one.
+ * <p>
+ * The output is computed in tiles of m x m pixels from overlapping input tiles of α x α = (m + 2) x (m + 2) pixels:
+ * Y = Aᵀ [Σc (G g Gᵀ) ⊙ (Bᵀ d B)] A
+ * The kernel g is transformed once into U = G g Gᵀ and cached until the kernels are updated,
+ * every input tile d is transformed once into V = Bᵀ d B and reused for all filters.
+ * The sum over the channels is taken in the transformed domain, so the inverse transform runs once per filter and
+ * tile, not once per kernel. For every one of the α² transform elements e, the products and the sum over the channels
+ * of all filters, samples and tiles are one matrix multiplication:
+ * M[e] = U[e] * V[e] of shape [filters][channels] * [channels][samples * tiles]
+ * What remains per kernel and tile are α² multiplications instead of 9 m², i.e. 16 instead of 36 for F(2x2, 3x3)
+ * and 36 instead of 144 for F(4x4, 3x3).
+ * <p>
+ * The results agree with {@link DirectConvolution} to within {@link #TOLERANCE} relative to the magnitude of the
+ * products involved; F(4x4, 3x3) loses a few more bits than F(2x2, 3x3) because of its larger transform coefficients.
+ * <p>
+ * The backward pass is delegated to {@link GemmConvolution}, which has not seen the forward pass and therefore
+ * unrolls the input again.
+ */
+public class WinogradConvolution implements ConvolutionEngine {
+
+    /**
+     * Maximum deviation from the direct convolution, relative to Σ |input| * |kernel| of an output pixel
+     */
+    public static final double TOLERANCE = 1e-12;
+
+    private static final double[][] B_T_2 = {
+            {1, 0, -1, 0},
+            {0, 1, 1, 0},
+            {0, -1, 1, 0},
+            {0, 1, 0, -1}
+    };
+    private static final double[][] G_2 = {
+            {1, 0, 0},
+            {.5, .5, .5},
+            {.5, -.5, .5},
+            {0, 0, 1}
+    };
+    private static final double[][] A_T_2 = {
+            {1, 1, 1, 0},
+            {0, 1, -1, -1}
+    };
+
+    private static final double[][] B_T_4 = {
+            {4, 0, -5, 0, 1, 0},
+            {0, -4, -4, 1, 1, 0},
+            {0, 4, -4, -1, 1, 0},
+            {0, -2, -1, 2, 1, 0},
+            {0, 2, -1, -2, 1, 0},
+            {0, 4, 0, -5, 0, 1}
+    };
+    private static final double[][] G_4 = {
+            {1 / 4., 0, 0},
+            {-1 / 6., -1 / 6., -1 / 6.},
+            {-1 / 6., 1 / 6., -1 / 6.},
+            {1 / 24., 1 / 12., 1 / 6.},
+            {1 / 24., -1 / 12., 1 / 6.},
+            {0, 0, 1}
+    };
+    private static final double[][] A_T_4 = {
+            {1, 1, 1, 1, 1, 0},
+            {0, 1, -1, 2, -2, 0},
+            {0, 1, 1, 4, 4, 0},
+            {0, 1, -1, 8, -8, 1}
+    };
+
+    private final Workspace workspace = new Workspace();
+    private final GemmConvolution backward = new GemmConvolution();
+
+    /**
+     * The output tile's size m
+     */
+    private final int tile;
+    /**
+     * The input tile's size α = m + 2
+     */
+    private final int alpha;
+    private final double[][] bT;
+    private final double[][] g;
+    private final double[][] aT;
+
+    /**
+     * The kernels the cached transformed kernels belong to, null if the cache is invalid
+     */
+    private Matrix[] transformedKernels;
+
+    /**
+     * @param tile the output tile's size, 2 for F(2x2, 3x3) or 4 for F(4x4, 3x3)
+     */
+    public WinogradConvolution(final int tile) {
+        if (tile != 2 && tile != 4) {
+            throw new IllegalArgumentException("Only F(2x2, 3x3) and F(4x4, 3x3) are supported");
+        }
+        this.tile = tile;
+        this.alpha = tile + 2;
+        this.bT = tile == 2 ? B_T_2 : B_T_4;
+        this.g = tile == 2 ? G_2 : G_4;
+        this.aT = tile == 2 ? A_T_2 : A_T_4;
+    }
+
+    /**
+     * @param kernelRows the kernel's rows
+     * @param kernelCols the kernel's columns
+     * @return true if the kernel shape can be computed by this engine
+     */
+    public static boolean supports(final int kernelRows, final int kernelCols) {
+        return kernelRows == 3 && kernelCols == 3;
+    }
+
+    @Override
+    public void forward(@NotNull final Matrix[] input, final int channels, @NotNull final Matrix[] kernels, @NotNull final Matrix[] output) {
+        if (!supports(kernels[0].getRows(), kernels[0].getCols())) {
+            throw new IllegalArgumentException("Winograd convolution requires 3x3 kernels");
+        }
+        final int area = alpha * alpha;
+        final int samples = input.length / channels;
+        final int filters = kernels.length / channels;
+        final int outputRows = output[0].getRows();
+        final int outputCols = output[0].getCols();
+        final int tileRows = (outputRows + tile - 1) / tile;
+        final int tileCols = (outputCols + tile - 1) / tile;
+        final int tiles = tileRows * tileCols;
+        //The tiles of all samples form one run per channel and transform element
+        final int run = samples * tiles;
+
+        final Matrix u = transformKernels(kernels, channels);
+
+        /*
+        V = Bᵀ d B for every input map and tile. The layout is [α²][channel][sample][tile], all tiles of one transform
+        element and channel are stored next to each other, so that the remaining stages run over long dense runs of tiles
+         */
+        final Matrix v = workspace.matrix("transformedInput", area * channels, run, Init.UNINITIALIZED);
+        final double[] vd = v.getData();
+        final double[] patch = new double[area];
+        final double[] transformed = new double[area];
+        final double[] scratch = new double[area];
+        for (int n = 0; n < samples; n++) {
+            for (int c = 0; c < channels; c++) {
+                final Matrix map = input[n * channels + c];
+                final int start = v.index(c, n * tiles);
+                for (int ti = 0; ti < tileRows; ti++) {
+                    for (int tj = 0; tj < tileCols; tj++) {
+                        readPatch(map, ti * tile - 1, tj * tile - 1, patch);
+                        transform(bT, patch, scratch, transformed);
+                        final int t = start + ti * tileCols + tj;
+                        for (int e = 0; e < area; e++) {
+                            vd[t + e * channels * run] = transformed[e];
+                        }
+                    }
+                }
+            }
+        }
+
+        //M = Σc U ⊙ V, one product of [filters][channels] and [channels][samples * tiles] per transform element
+        final Matrix m = workspace.matrix("product", area * filters, run, Init.UNINITIALIZED);
+        for (int e = 0; e < area; e++) {
+            Gemm.multiply(u.view(e * filters, 0, filters, channels), v.view(e * channels, 0, channels, run),
+                    m.view(e * filters, 0, filters, run), false);
+        }
+        final double[] md = m.getData();
+
+        //Y = Aᵀ M A for every filter, over the tiles of all samples at once
+        final Matrix half = workspace.matrix("halfTransformed", tile * alpha, run, Init.UNINITIALIZED);
+        final Matrix result = workspace.matrix("transformedOutput", tile * tile, run, Init.UNINITIALIZED);
+        final double[] hd = half.getData();
+        final double[] rd = result.getData();
+        for (int o = 0; o < filters; o++) {
+            //First half: (Aᵀ M)[i][j] = Σl Aᵀ[i][l] * M[l][j]
+            for (int i = 0; i < tile; i++) {
+                for (int j = 0; j < alpha; j++) {
+                    final int destination = (i * alpha + j) * run;
+                    Arrays.fill(hd, destination, destination + run, 0);
+                    for (int l = 0; l < alpha; l++) {
+                        if (aT[i][l] != 0) {
+                            axpy(aT[i][l], md, m.index((l * alpha + j) * filters + o, 0), hd, destination, run);
+                        }
+                    }
+                }
+            }
+            //Second half: ((Aᵀ M) A)[i][j] = Σl (Aᵀ M)[i][l] * Aᵀ[j][l]
+            for (int i = 0; i < tile; i++) {
+                for (int j = 0; j < tile; j++) {
+                    final int destination = (i * tile + j) * run;
+                    Arrays.fill(rd, destination, destination + run, 0);
+                    for (int l = 0; l < alpha; l++) {
+                        if (aT[j][l] != 0) {
+                            axpy(aT[j][l], hd, (i * alpha + l) * run, rd, destination, run);
+                        }
+                    }
+                }
+            }
+            for (int n = 0; n < samples; n++) {
+                writeTiles(rd, n * tiles, run, output[o * samples + n], tileRows, tileCols);
+            }
+        }
+    }
+
+    /**
+     * destination[i] += factor * source[i] for a run of values
+     */
+    private static void axpy(final double factor, final double[] source, final int sourceOffset,
+                             final double[] destination, final int destinationOffset, final int length) {
+        for (int t = 0; t < length; t++) {
+            destination[destinationOffset + t] += factor * source[sourceOffset + t];
+        }
+    }
+
+    /**
+     * Scatters a map's output tiles into the output map and clips the tiles overhanging its edge
+     *
+     * @param tilesData the tiles, stored as [m²][run]
+     * @param first     the index of the map's first tile within a run
+     * @param run       the distance between two elements of a tile
+     */
+    private void writeTiles(final double[] tilesData, final int first, final int run, final Matrix map, final int tileRows, final int tileCols) {
+        final double[] md = map.getData();
+        final int colStride = map.getColStride();
+        for (int ti = 0; ti < tileRows; ti++) {
+            final int rows = Math.min(tile, map.getRows() - ti * tile);
+            for (int i = 0; i < rows; i++) {
+                final int row = map.index(ti * tile + i, 0);
+                for (int tj = 0; tj < tileCols; tj++) {
+                    final int cols = Math.min(tile, map.getCols() - tj * tile);
+                    final int t = first + ti * tileCols + tj;
+                    for (int j = 0; j < cols; j++) {
+                        md[row + (tj * tile + j) * colStride] = tilesData[(i * tile + j) * run + t];
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void backward(@NotNull final Matrix[] input, final int channels, @NotNull final Matrix[] kernels, @NotNull final Matrix[] delta,
+                         @NotNull final Matrix[] deltaKernels, @NotNull final Matrix[] deltaInput) {
+        backward.backwardWithoutForward(input, channels, kernels, delta, deltaKernels, deltaInput);
+    }
+
+    @Override
+    public void invalidate() {
+        transformedKernels = null;
+    }
+
+    /**
+     * U = G g Gᵀ for every kernel, laid out as [α²][filter][channel], i.e. one [filters][channels] matrix per
+     * transform element. Cached until the kernels are updated
+     */
+    private Matrix transformKernels(final Matrix[] kernels, final int channels) {
+        final int filters = kernels.length / channels;
+        final Matrix u = workspace.matrix("transformedKernels", alpha * alpha * filters, channels,
+                transformedKernels == kernels ? Init.UNINITIALIZED : Init.ZEROS);
+        if (transformedKernels == kernels) {
+            return u;
+        }
+        final double[] ud = u.getData();
+        final double[] gg = new double[alpha * 3];
+        for (int k = 0; k < kernels.length; k++) {
+            final Matrix kernel = kernels[k];
+            //G g: [α][3]
+            for (int i = 0; i < alpha; i++) {
+                for (int j = 0; j < 3; j++) {
+                    double sum = 0;
+                    for (int l = 0; l < 3; l++) {
+                        sum += g[i][l] * kernel.get(l, j);
+                    }
+                    gg[i * 3 + j] = sum;
+                }
+            }
+            //(G g) Gᵀ: [α][α]
+            for (int i = 0; i < alpha; i++) {
+                for (int j = 0; j < alpha; j++) {
+                    double sum = 0;
+                    for (int l = 0; l < 3; l++) {
+                        sum += gg[i * 3 + l] * g[j][l];
+                    }
+                    ud[u.index((i * alpha + j) * filters + k / channels, k % channels)] = sum;
+                }
+            }
+        }
+        transformedKernels = kernels;
+        return u;
+    }
+
+    /**
+     * Copies the α x α patch starting at (row, col) into a flat array, pixels outside the map are zero padding
+     */
+    private void readPatch(final Matrix map, final int row, final int col, final double[] patch) {
+        for (int i = 0; i < alpha; i++) {
+            final int r = row + i;
+            for (int j = 0; j < alpha; j++) {
+                final int c = col + j;
+                patch[i * alpha + j] = r >= 0 && r < map.getRows() && c >= 0 && c < map.getCols() ? map.get(r, c) : 0;
+            }
+        }
+    }
+
+    /**
+     * Computes Bᵀ d B for a square input transform Bᵀ of size [α][α]
+     */
+    private void transform(final double[][] m, final double[] d, final double[] scratch, final double[] destination) {
+        //Bᵀ d
+        for (int i = 0; i < alpha; i++) {
+            for (int j = 0; j < alpha; j++) {
+                double sum = 0;
+                for (int l = 0; l < alpha; l++) {
+                    if (m[i][l] != 0) {
+                        sum += m[i][l] * d[l * alpha + j];
+                    }
+                }
+                scratch[i * alpha + j] = sum;
+            }
+        }
+        //(Bᵀ d) B
+        for (int i = 0; i < alpha; i++) {
+            for (int j = 0; j < alpha; j++) {
+                double sum = 0;
+                for (int l = 0; l < alpha; l++) {
+                    if (m[j][l] != 0) {
+                        sum += scratch[i * alpha + l] * m[j][l];
+                    }
+                }
+                destination[i * alpha + j] = sum;
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package net.bplaced.abzzezz.network.inference;
+
+import net.bplaced.abzzezz.network.CNN;
+import net.bplaced.abzzezz.util.math.matrix.Matrix;
+import net.bplaced.abzzezz.util.math.vector.Vec;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classifies single images submitted by any number of threads, coalesced into micro-batches.
+ * <p>
+ * Requests are queued, a worker takes the oldest one and waits for more until either the batch is full or the
+ * oldest request waited the maximum wait time. The batch is then run through one batched forward pass, which is
+ * considerably cheaper per image than a pass per image, and every request's future is completed with its own row
+ * of the output. With several workers, every worker has its own {@link CNN.Context}, the network is shared.
+ * <p>
+ * The maximum wait time bounds the latency a request pays for batching when the load is low, under high load
+ * the batches fill up immediately.
+ */
+public class InferenceEngine implements AutoCloseable {
+
+    private final CNN network;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread[] workers;
+    private final InferenceStats stats;
+
+    private volatile boolean closed;
+
+    /**
+     * @param network      the network to classify with, may be trained further meanwhile
+     * @param maxBatchSize the maximum number of requests per batch
+     * @param maxWait      the maximum time the oldest request of a batch waits for further requests
+     * @param unit         the maximum wait time's unit
+     * @param workers      the number of threads running batches
+     */
+    public InferenceEngine(final @NotNull CNN network, final int maxBatchSize, final long maxWait, final @NotNull TimeUnit unit, final int workers) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive, was " + maxBatchSize);
+        }
+        if (workers < 1) {
+            throw new IllegalArgumentException("The engine needs at least one worker, was " + workers);
+        }
+        this.network = network;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = unit.toNanos(maxWait);
+        this.stats = new InferenceStats(maxBatchSize);
+        this.workers = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            final Thread worker = new Thread(this::work, "Inference-" + i);
+            worker.setDaemon(true);
+            this.workers[i] = worker;
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues an image for classification
+     *
+     * @param image the preprocessed image, see {@link net.bplaced.abzzezz.util.image.ImageUtil#getNormalizedMatrixFromImage}.
+     *              Must not be changed until the future completed
+     * @return the network's output for the image. Cancelling the future before the request's batch is run drops
+     * the request, it is not computed
+     */
+    public CompletableFuture<Vec> submit(final @NotNull Matrix image) {
+        final Request request = new Request(image);
+        if (closed) {
+            request.result.completeExceptionally(new IllegalStateException("The inference engine is closed"));
+            return request.result;
+        }
+        queue.add(request);
+        //The engine may have been closed while the request was added, then nobody takes it anymore
+        if (closed && queue.remove(request)) {
+            request.result.completeExceptionally(new IllegalStateException("The inference engine is closed"));
+        }
+        return request.result;
+    }
+
+    /**
+     * A worker's loop: collects a batch, runs it and completes its requests
+     */
+    private void work() {
+        final CNN.Context context = network.newContext();
+        final List<Request> batch = new ArrayList<>(maxBatchSize);
+        while (!closed) {
+            try {
+                final Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                //Requests whose future is done were cancelled while they were queued
+                if (first == null || first.result.isDone()) {
+                    continue;
+                }
+                batch.add(first);
+                final long deadline = first.submitted + maxWaitNanos;
+                while (batch.size() < maxBatchSize) {
+                    //Take whatever is queued already, then wait for the rest until the deadline
+                    if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                        batch.removeIf(request -> request.result.isDone());
+                        continue;
+                    }
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    final Request next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    if (!next.result.isDone()) {
+                        batch.add(next);
+                    }
+                }
+                //Every request may have been cancelled meanwhile
+                batch.removeIf(request -> request.result.isDone());
+                if (!batch.isEmpty()) {
+                    run(context, batch);
+                }
+            } catch (final InterruptedException e) {
+                //Closed, the remaining requests are failed by close
+                fail(batch);
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void run(final CNN.Context context, final List<Request> batch) {
+        final Matrix[] images = new Matrix[batch.size()];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = batch.get(i).image;
+        }
+        final Matrix output;
+        try {
+            output = network.predict(context, images);
+        } catch (final RuntimeException e) {
+            batch.forEach(request -> request.result.completeExceptionally(e));
+            return;
+        }
+        stats.recordBatch(batch.size());
+        for (int i = 0; i < images.length; i++) {
+            final Request request = batch.get(i);
+            //The output is only valid until the context's next pass, every request gets a copy of its row
+            final Vec result = new Vec(output.getRow(i));
+            stats.recordLatency(System.nanoTime() - request.submitted);
+            request.result.complete(result);
+        }
+    }
+
+    private static void fail(final List<Request> requests) {
+        requests.forEach(request -> request.result.completeExceptionally(new IllegalStateException("The inference engine is closed")));
+    }
+
+    /**
+     * @return the engine's latency and batch size statistics
+     */
+    public InferenceStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Stops the workers, waiting for the batches in progress. Requests which were not started yet fail
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (final Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        final List<Request> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        fail(remaining);
+    }
+
+    private static final class Request {
+
+        private final Matrix image;
+        private final long submitted = System.nanoTime();
+        private final CompletableFuture<Vec> result = new CompletableFuture<>();
+
+        private Request(final Matrix image) {
+            this.image = image;
+        }
+    }
+}
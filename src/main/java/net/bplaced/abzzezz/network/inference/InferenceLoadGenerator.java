@@ -0,0 +1,92 @@
+package net.bplaced.abzzezz.network.inference;
+
+import net.bplaced.abzzezz.network.CNN;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the requests per second of an {@link InferenceServer} on localhost.
+ * <p>
+ * A number of connections send the same image back to back for a fixed time. The HTTP/1.1 client keeps its
+ * connections alive, so the measurement contains no connection setup. Rejected requests are counted separately.
+ * <p>
+ * Usage: {@code InferenceLoadGenerator <image> [connections] [seconds] [url]}. Without a URL a server with an
+ * untrained network is started in-process.
+ */
+public class InferenceLoadGenerator {
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: InferenceLoadGenerator <image> [connections] [seconds] [url]");
+            return;
+        }
+        final byte[] image = Files.readAllBytes(new File(args[0]).toPath());
+        final int connections = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        InferenceServer server = null;
+        final URI uri;
+        if (args.length > 3) {
+            uri = URI.create(args[3]);
+        } else {
+            final int threads = Runtime.getRuntime().availableProcessors();
+            server = new InferenceServer(new CNN(), 0, threads, connections * 2, 16);
+            uri = URI.create("http://localhost:" + server.getPort() + "/classify");
+        }
+
+        try {
+            run(uri, image, connections, seconds);
+            if (server != null) {
+                server.getStats().print();
+            }
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    private static void run(final URI uri, final byte[] image, final int connections, final int seconds) throws InterruptedException {
+        final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        final HttpRequest request = HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.ofByteArray(image)).build();
+        final LongAdder succeeded = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder failed = new LongAdder();
+
+        final long end = System.nanoTime() + seconds * 1_000_000_000L;
+        final Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            threads[i] = new Thread(() -> {
+                while (System.nanoTime() < end) {
+                    try {
+                        final int status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+                        if (status == 200) {
+                            succeeded.increment();
+                        } else if (status == 503) {
+                            rejected.increment();
+                        } else {
+                            failed.increment();
+                        }
+                    } catch (final IOException e) {
+                        failed.increment();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "Load-" + i);
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        System.out.printf("%d connections, %d s: %.1f requests/s, %d succeeded, %d rejected, %d failed%n",
+                connections, seconds, succeeded.sum() / (double) seconds, succeeded.sum(), rejected.sum(), failed.sum());
+    }
+}
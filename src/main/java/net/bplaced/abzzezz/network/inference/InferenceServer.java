@@ -0,0 +1,204 @@
+package net.bplaced.abzzezz.network.inference;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.bplaced.abzzezz.network.CNN;
+import net.bplaced.abzzezz.util.ThreadUtil;
+import net.bplaced.abzzezz.util.image.ImageUtil;
+import net.bplaced.abzzezz.util.math.matrix.Matrix;
+import net.bplaced.abzzezz.util.math.vector.Vec;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import static net.bplaced.abzzezz.util.Const.IMAGE_SIZE;
+
+/**
+ * An embedded HTTP server classifying images.
+ * <p>
+ * {@code POST /classify} with an encoded image (PNG, JPEG, ...) as the body answers with the class probabilities as JSON,
+ * {@code GET /stats} with the inference engine's latency percentiles.
+ * <p>
+ * Every exchange is handled on its own virtual thread, which only waits. The CPU-bound work runs on bounded pools:
+ * decoding and preprocessing on a fixed pool, the forward passes on the {@link InferenceEngine}'s workers, which
+ * batch concurrent requests. At most a fixed number of requests are in flight, further requests are shed immediately
+ * with 503 and a Retry-After header instead of queueing up, so the latency of the accepted requests stays bounded.
+ */
+public class InferenceServer implements AutoCloseable {
+
+    /**
+     * The largest accepted request body
+     */
+    private static final int MAX_IMAGE_BYTES = 16 << 20;
+    /**
+     * How long an accepted request may take before it is answered with 503 and its work is cancelled
+     */
+    private static final long REQUEST_TIMEOUT_SECONDS = 10;
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final ExecutorService preprocessing;
+    private final InferenceEngine engine;
+    private final Semaphore inFlight;
+
+    private final LongAdder shed = new LongAdder();
+
+    /**
+     * @param network        the network to classify with
+     * @param port           the port to listen on, 0 for any free port
+     * @param computeThreads the number of threads preprocessing images and the number of threads running forward passes
+     * @param maxInFlight    the maximum number of requests accepted at once
+     * @param maxBatchSize   the maximum number of images per forward pass
+     * @throws IOException if the port cannot be bound
+     */
+    public InferenceServer(final @NotNull CNN network, final int port, final int computeThreads, final int maxInFlight, final int maxBatchSize) throws IOException {
+        if (computeThreads < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("The server needs at least one compute thread and one request in flight");
+        }
+        this.inFlight = new Semaphore(maxInFlight);
+        this.preprocessing = Executors.newFixedThreadPool(computeThreads, ThreadUtil.daemonThreadFactory("Preprocessing"));
+        this.engine = new InferenceEngine(network, maxBatchSize, 2, TimeUnit.MILLISECONDS, computeThreads);
+        this.handlers = ThreadUtil.newThreadPerTaskExecutor("Http");
+        this.server = HttpServer.create(new InetSocketAddress("localhost", port), maxInFlight);
+        server.setExecutor(handlers);
+        server.createContext("/classify", this::classify);
+        server.createContext("/stats", this::stats);
+        server.start();
+    }
+
+    private void classify(final HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "{\"error\":\"POST an image\"}");
+                return;
+            }
+            if (!inFlight.tryAcquire()) {
+                shed.increment();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 503, "{\"error\":\"overloaded\"}");
+                return;
+            }
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(REQUEST_TIMEOUT_SECONDS);
+            Future<Matrix> decoding = null;
+            CompletableFuture<Vec> inference = null;
+            try {
+                final byte[] body = exchange.getRequestBody().readNBytes(MAX_IMAGE_BYTES + 1);
+                if (body.length > MAX_IMAGE_BYTES) {
+                    respond(exchange, 413, "{\"error\":\"image too large\"}");
+                    return;
+                }
+                decoding = preprocessing.submit(() -> ImageUtil.getNormalizedMatrixFromImage(body, IMAGE_SIZE, IMAGE_SIZE));
+                final Matrix image = decoding.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                inference = engine.submit(image);
+                final Vec output = inference.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                respond(exchange, 200, toJson(output));
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    respond(exchange, 400, "{\"error\":\"unreadable image\"}");
+                } else {
+                    respond(exchange, 500, "{\"error\":\"inference failed\"}");
+                }
+            } catch (final TimeoutException e) {
+                cancel(decoding, inference);
+                respond(exchange, 503, "{\"error\":\"timeout\"}");
+            } catch (final InterruptedException e) {
+                cancel(decoding, inference);
+                Thread.currentThread().interrupt();
+                respond(exchange, 503, "{\"error\":\"shutting down\"}");
+            } finally {
+                inFlight.release();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Stops the work of a request which is given up on. The request stops counting as in flight, so its work must
+     * not go on: a decode which has not started is dropped and one in progress interrupted, an image still queued
+     * in the engine is skipped
+     */
+    private static void cancel(final Future<Matrix> decoding, final CompletableFuture<Vec> inference) {
+        if (decoding != null) {
+            decoding.cancel(true);
+        }
+        if (inference != null) {
+            inference.cancel(true);
+        }
+    }
+
+    private void stats(final HttpExchange exchange) throws IOException {
+        try {
+            final InferenceStats stats = engine.getStats();
+            respond(exchange, 200, String.format(Locale.ROOT,
+                    "{\"requests\":%d,\"shed\":%d,\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"meanBatchSize\":%.2f}",
+                    stats.getRequests(), shed.sum(),
+                    stats.getLatencyPercentile(50) / 1e6, stats.getLatencyPercentile(90) / 1e6, stats.getLatencyPercentile(99) / 1e6,
+                    stats.getMeanBatchSize()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * The network has one output, the probability of a dog
+     */
+    private static String toJson(final Vec output) {
+        final double dog = output.get(0);
+        return String.format(Locale.ROOT, "{\"dog\":%.6f,\"other\":%.6f}", dog, 1 - dog);
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final String json) throws IOException {
+        final byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream stream = exchange.getResponseBody()) {
+            stream.write(body);
+        }
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return the number of requests rejected because too many were in flight
+     */
+    public long getShed() {
+        return shed.sum();
+    }
+
+    /**
+     * @return the statistics of the server's inference engine
+     */
+    public InferenceStats getStats() {
+        return engine.getStats();
+    }
+
+    /**
+     * Stops accepting requests, then stops all threads
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        engine.close();
+        preprocessing.shutdownNow();
+        handlers.shutdownNow();
+    }
+}
@@ -0,0 +1,112 @@
+package net.bplaced.abzzezz.network.inference;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency and batch size statistics of an {@link InferenceEngine}.
+ * <p>
+ * The latencies of the most recent requests are kept in a ring buffer, percentiles are computed from a sorted copy
+ * of it on demand. The batch sizes are counted in a histogram with one bucket per possible size.
+ */
+public class InferenceStats {
+
+    /**
+     * The number of recent latencies the percentiles are computed from
+     */
+    private static final int LATENCY_WINDOW = 8192;
+
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private long requests;
+
+    private final AtomicLongArray batchSizes;
+
+    /**
+     * @param maxBatchSize the largest possible batch size
+     */
+    InferenceStats(final int maxBatchSize) {
+        this.batchSizes = new AtomicLongArray(maxBatchSize + 1);
+    }
+
+    /**
+     * @param nanos the time from a request's submission until its completion
+     */
+    synchronized void recordLatency(final long nanos) {
+        latencies[(int) (requests % LATENCY_WINDOW)] = nanos;
+        requests++;
+    }
+
+    /**
+     * @param size the number of requests of a batch
+     */
+    void recordBatch(final int size) {
+        batchSizes.incrementAndGet(size);
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency in nanoseconds below which the given percentage of the recent requests completed,
+     * 0 if no request completed yet
+     */
+    public long getLatencyPercentile(final double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100, was " + percentile);
+        }
+        final long[] sorted;
+        synchronized (this) {
+            if (requests == 0) {
+                return 0;
+            }
+            sorted = Arrays.copyOf(latencies, (int) Math.min(requests, LATENCY_WINDOW));
+        }
+        Arrays.sort(sorted);
+        final int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+
+    /**
+     * @return the number of completed requests
+     */
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return the number of batches per batch size, index i holds the number of batches of i requests
+     */
+    public long[] getBatchSizeHistogram() {
+        final long[] histogram = new long[batchSizes.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = batchSizes.get(i);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return the mean number of requests per batch, 0 if no batch was run yet
+     */
+    public double getMeanBatchSize() {
+        long batches = 0;
+        long requests = 0;
+        for (int i = 0; i < batchSizes.length(); i++) {
+            batches += batchSizes.get(i);
+            requests += i * batchSizes.get(i);
+        }
+        return batches == 0 ? 0 : requests / (double) batches;
+    }
+
+    /**
+     * Prints the percentiles and the histogram's non-empty buckets
+     */
+    public void print() {
+        System.out.printf("Requests: %d, latency p50: %.2f ms, p90: %.2f ms, p99: %.2f ms%n", getRequests(),
+                getLatencyPercentile(50) / 1e6, getLatencyPercentile(90) / 1e6, getLatencyPercentile(99) / 1e6);
+        System.out.printf("Mean batch size: %.2f%n", getMeanBatchSize());
+        final long[] histogram = getBatchSizeHistogram();
+        for (int i = 1; i < histogram.length; i++) {
+            if (histogram[i] > 0) {
+                System.out.printf("Batch size %d: %d%n", i, histogram[i]);
+            }
+        }
+    }
+}
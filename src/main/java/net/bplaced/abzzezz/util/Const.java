@@ -12,6 +12,16 @@ public class Const {
 
     public static final double LEARNING_RATE = 0.1;
 
+    /**
+     * Number of samples per training step, the gradients are averaged over the batch
+     */
+    public static final int BATCH_SIZE = 16;
+
+    /**
+     * Number of batches the data loader prepares ahead of training
+     */
+    public static final int PREFETCH_BATCHES = 4;
+
     public static final Random RANDOM = new Random();
 
 }
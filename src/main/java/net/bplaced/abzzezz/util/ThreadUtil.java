@@ -0,0 +1,39 @@
+package net.bplaced.abzzezz.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ThreadUtil {
+
+    /**
+     * Creates an executor which starts a new virtual thread for every task. Virtual threads are looked up reflectively,
+     * so the code still runs on JDKs without them, where a cached pool of daemon platform threads is used instead
+     *
+     * @param name the platform threads' name prefix, if virtual threads are not available
+     * @return an executor running every task on its own thread
+     */
+    public static ExecutorService newThreadPerTaskExecutor(final String name) {
+        try {
+            final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (final ReflectiveOperationException | UnsupportedOperationException e) {
+            return Executors.newCachedThreadPool(daemonThreadFactory(name));
+        }
+    }
+
+    /**
+     * @param name the threads' name prefix, followed by a counter
+     * @return a factory for daemon threads, which do not keep the JVM running
+     */
+    public static ThreadFactory daemonThreadFactory(final String name) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name + "-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,94 @@
+package net.bplaced.abzzezz.util.data;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Where the classes lie in a dataset sorted by class.
+ * <p>
+ * Class c's samples are the contiguous indices starting at {@link #getClassStart(int)}, following those of class c - 1.
+ * A {@link DatasetIndex} and the {@link DatasetCache} built from it share this order, an {@link EpochSampler} draws
+ * its indices from it.
+ */
+public final class ClassLayout {
+
+    /**
+     * The index of every class's first sample, the last entry is the number of samples
+     */
+    private final int[] classStart;
+
+    ClassLayout(final int[] classStart) {
+        this.classStart = classStart;
+    }
+
+    /**
+     * @param classSizes the number of samples of every class
+     * @return the layout of the classes stored one after another
+     */
+    public static ClassLayout of(final int @NotNull [] classSizes) {
+        final int[] classStart = new int[classSizes.length + 1];
+        for (int c = 0; c < classSizes.length; c++) {
+            if (classSizes[c] < 0) {
+                throw new IllegalArgumentException("Negative number of samples for class " + c);
+            }
+            classStart[c + 1] = Math.addExact(classStart[c], classSizes[c]);
+        }
+        return new ClassLayout(classStart);
+    }
+
+    /**
+     * @param index the sample's index
+     * @return the sample's class
+     */
+    public int getLabel(final int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        //There are only a few classes
+        int c = 0;
+        while (index >= classStart[c + 1]) {
+            c++;
+        }
+        return c;
+    }
+
+    /**
+     * @return the number of samples
+     */
+    public int size() {
+        return classStart[classStart.length - 1];
+    }
+
+    /**
+     * @return the number of classes
+     */
+    public int getClasses() {
+        return classStart.length - 1;
+    }
+
+    /**
+     * @param label the class, {@link #getClasses()} for the end of the last class
+     * @return the index of the class's first sample
+     */
+    public int getClassStart(final int label) {
+        return classStart[label];
+    }
+
+    /**
+     * @param label the class
+     * @return the number of samples of the class
+     */
+    public int getSamples(final int label) {
+        return classStart[label + 1] - classStart[label];
+    }
+
+    /**
+     * @return the number of samples of every class
+     */
+    public int[] getClassSizes() {
+        final int[] sizes = new int[getClasses()];
+        for (int c = 0; c < sizes.length; c++) {
+            sizes[c] = getSamples(c);
+        }
+        return sizes;
+    }
+}
@@ -0,0 +1,235 @@
+package net.bplaced.abzzezz.util.data;
+
+import net.bplaced.abzzezz.util.ThreadUtil;
+import net.bplaced.abzzezz.util.TrainData;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Prepares batches on a pool of worker threads ahead of the training thread, so decoding overlaps with training.
+ * <p>
+ * Every worker reserves the next batch, draws its sample indices from the sampler, reads the samples and puts the
+ * batch into a ring buffer of ready batches. At most {@code prefetch} batches are reserved or ready at once, workers
+ * wait for the trainer to take one before they start another, so memory stays bounded.
+ * <p>
+ * With ordered delivery the batches are handed out in the order their indices were drawn, so a seeded sampler yields
+ * the same batches run after run. Unordered delivery hands out whichever batch is ready first, a slow image then
+ * does not hold up the batches behind it.
+ */
+public class DataLoader implements AutoCloseable {
+
+    /**
+     * Reads a sample, called by several workers at once
+     */
+    @FunctionalInterface
+    public interface Source {
+        TrainData read(int sample) throws IOException;
+    }
+
+    private final EpochSampler sampler;
+    private final Source source;
+    private final int batchSize;
+    private final boolean ordered;
+    private final ExecutorService workers;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private final Condition free = lock.newCondition();
+    /**
+     * The ring buffer, with ordered delivery batch n goes to slot n % prefetch, otherwise the batches are stored in
+     * the order they are completed
+     */
+    private final Batch[] slots;
+    /**
+     * The number of batches reserved by workers
+     */
+    private long reserved;
+    /**
+     * The number of batches completed by workers
+     */
+    private long completed;
+    /**
+     * The number of batches taken by the trainer
+     */
+    private long taken;
+    private boolean closed;
+
+    private long waits;
+    private long waitNanos;
+
+    /**
+     * @param sampler   draws the samples' indices
+     * @param source    reads a sample
+     * @param batchSize the number of samples per batch
+     * @param prefetch  the maximum number of batches prepared ahead
+     * @param workers   the number of threads reading samples
+     * @param ordered   whether batches are delivered in the order they were drawn
+     */
+    public DataLoader(final @NotNull EpochSampler sampler, final @NotNull Source source, final int batchSize,
+                      final int prefetch, final int workers, final boolean ordered) {
+        if (batchSize < 1 || prefetch < 1 || workers < 1) {
+            throw new IllegalArgumentException("Batch size, prefetch depth and number of workers must be positive");
+        }
+        this.sampler = sampler;
+        this.source = source;
+        this.batchSize = batchSize;
+        this.ordered = ordered;
+        this.slots = new Batch[prefetch];
+        this.workers = Executors.newFixedThreadPool(workers, ThreadUtil.daemonThreadFactory("DataLoader"));
+        for (int i = 0; i < workers; i++) {
+            this.workers.execute(this::work);
+        }
+    }
+
+    /**
+     * Takes the next batch, waiting if none is ready yet
+     *
+     * @return the batch
+     * @throws IOException if a sample of the batch could not be read
+     */
+    public TrainData[] next() throws IOException {
+        final Batch batch;
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Data loader is closed");
+            }
+            final int slot = (int) (taken % slots.length);
+            if (slots[slot] == null) {
+                final long start = System.nanoTime();
+                waits++;
+                while (slots[slot] == null) {
+                    ready.awaitUninterruptibly();
+                }
+                waitNanos += System.nanoTime() - start;
+            }
+            batch = slots[slot];
+            slots[slot] = null;
+            taken++;
+            free.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (batch.error != null) {
+            throw new IOException("Could not load batch", batch.error);
+        }
+        return batch.data;
+    }
+
+    private void work() {
+        while (true) {
+            final long sequence;
+            final int[] samples = new int[batchSize];
+            lock.lock();
+            try {
+                while (!closed && reserved - taken >= slots.length) {
+                    free.awaitUninterruptibly();
+                }
+                if (closed) {
+                    return;
+                }
+                sequence = reserved++;
+                //Drawn under the lock, so batch n always gets the n-th group of indices
+                for (int i = 0; i < batchSize; i++) {
+                    samples[i] = sampler.next();
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            final Batch batch = new Batch();
+            try {
+                batch.data = new TrainData[batchSize];
+                for (int i = 0; i < batchSize; i++) {
+                    batch.data[i] = source.read(samples[i]);
+                }
+            } catch (final IOException | RuntimeException e) {
+                batch.error = e;
+            }
+
+            lock.lock();
+            try {
+                final long position = ordered ? sequence : completed;
+                slots[(int) (position % slots.length)] = batch;
+                completed++;
+                ready.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the number of batches taken
+     */
+    public long getBatches() {
+        lock.lock();
+        try {
+            return taken;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of batches the trainer had to wait for
+     */
+    public long getWaits() {
+        lock.lock();
+        try {
+            return waits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the total time the trainer waited for batches, in nanoseconds
+     */
+    public long getWaitNanos() {
+        lock.lock();
+        try {
+            return waitNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Prints how often and how long the trainer waited for data
+     */
+    public void printStats() {
+        lock.lock();
+        try {
+            System.out.printf("Data loader: %d batches, waited for %d (%.1f%%), %.1f ms in total%n",
+                    taken, waits, taken == 0 ? 0 : 100.0 * waits / taken, waitNanos / 1e6);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the workers, batches being read are discarded
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            free.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        workers.shutdown();
+    }
+
+    private static final class Batch {
+        private TrainData[] data;
+        private Exception error;
+    }
+}
@@ -0,0 +1,275 @@
+package net.bplaced.abzzezz.util.data;
+
+import net.bplaced.abzzezz.util.TrainData;
+import net.bplaced.abzzezz.util.image.ImageUtil;
+import net.bplaced.abzzezz.util.math.matrix.Matrix;
+import net.bplaced.abzzezz.util.math.tensor.Init;
+import net.bplaced.abzzezz.util.math.vector.Vec;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+
+/**
+ * All training images, decoded, downscaled, greyscaled and normalized once and packed into one memory-mapped file.
+ * <p>
+ * Decoding a JPEG and resizing it costs far more than a training step's share of the compute, so instead of repeating
+ * it for every sample of every epoch, {@link #build} runs the preprocessing once and {@link #open} maps the result.
+ * Reading a sample then is a copy of rows * cols values out of the page cache.
+ * <p>
+ * The file is little-endian. A header of {@value #HEADER_SIZE} bytes:
+ * <pre>
+ * int magic "CNND", int version, int rows, int cols, int classes, per class: int samples
+ * </pre>
+ * followed by the samples as float32 values, row by row, sorted by class. Class c's expected result is the vector (c).
+ */
+public class DatasetCache {
+
+    private static final int MAGIC = 0x434E4E44;
+    /**
+     * Version 2 normalizes by 255 instead of 225, version 3 downscales by area averaging
+     */
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 64;
+    /**
+     * The number of images preprocessed in parallel before they are appended to the file
+     */
+    private static final int CHUNK = 256;
+
+    private final FloatBuffer samples;
+    private final int rows;
+    private final int cols;
+    private final ClassLayout classes;
+
+    private DatasetCache(final FloatBuffer samples, final int rows, final int cols, final ClassLayout classes) {
+        this.samples = samples;
+        this.rows = rows;
+        this.cols = cols;
+        this.classes = classes;
+    }
+
+    /**
+     * Preprocesses all images of the given directories into a cache file. Every directory holds one class, its images
+     * lie in sub directories, e.g. one per breed. Images which cannot be read are skipped
+     *
+     * @param classDirectories one directory per class, the n-th directory's images get the expected result (n)
+     * @param rows             the images' height after downscaling
+     * @param cols             the images' width after downscaling
+     * @param path             the cache file to write
+     * @throws IOException if the cache cannot be written
+     */
+    public static void build(final File @NotNull [] classDirectories, final int rows, final int cols, final @NotNull Path path) throws IOException {
+        build(DatasetIndex.build(classDirectories), rows, cols, path);
+    }
+
+    /**
+     * Preprocesses all images of an index into a cache file. Images which cannot be read are skipped
+     *
+     * @param index the images
+     * @param rows  the images' height after downscaling
+     * @param cols  the images' width after downscaling
+     * @param path  the cache file to write
+     * @throws IOException if the cache cannot be written
+     */
+    public static void build(final @NotNull DatasetIndex index, final int rows, final int cols, final @NotNull Path path) throws IOException {
+        final Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        final ClassLayout classes = index.getClassLayout();
+        final int[] counts = new int[classes.getClasses()];
+        final int sampleBytes = rows * cols * Float.BYTES;
+
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = HEADER_SIZE;
+            for (int c = 0; c < counts.length; c++) {
+                final int start = classes.getClassStart(c);
+                final int end = classes.getClassStart(c + 1);
+                for (int from = start; from < end; from += CHUNK) {
+                    //Decode a chunk in parallel, then append its images in order
+                    final List<float[]> chunk = IntStream.range(from, Math.min(end, from + CHUNK)).parallel()
+                            .mapToObj(i -> preprocess(index.getFile(i), rows, cols))
+                            .filter(Objects::nonNull)
+                            .toList();
+                    final ByteBuffer buffer = ByteBuffer.allocate(chunk.size() * sampleBytes).order(ByteOrder.LITTLE_ENDIAN);
+                    for (final float[] values : chunk) {
+                        buffer.asFloatBuffer().put(values);
+                        buffer.position(buffer.position() + sampleBytes);
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    counts[c] += chunk.size();
+                }
+            }
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(cols).putInt(counts.length);
+            for (final int count : counts) {
+                header.putInt(count);
+            }
+            header.flip();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Maps a cache file
+     *
+     * @param path the cache file
+     * @return the cached dataset
+     * @throws IOException if the file cannot be read or is no dataset cache
+     */
+    public static DatasetCache open(final @NotNull Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Dataset caches are limited to 2 GB, split the dataset into several caches");
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                throw new IOException("Not a dataset cache: " + path);
+            }
+            final int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported dataset cache version " + version);
+            }
+            final int rows = buffer.getInt();
+            final int cols = buffer.getInt();
+            final int classes = buffer.getInt();
+            if (classes < 1 || 5 * Integer.BYTES + classes * Integer.BYTES > HEADER_SIZE) {
+                throw new IOException("Invalid number of classes " + classes);
+            }
+            final int[] classStart = new int[classes + 1];
+            for (int c = 0; c < classes; c++) {
+                classStart[c + 1] = classStart[c] + buffer.getInt();
+            }
+            if (HEADER_SIZE + (long) classStart[classes] * rows * cols * Float.BYTES > buffer.capacity()) {
+                throw new IOException("Dataset cache is truncated: " + path);
+            }
+            final FloatBuffer samples = buffer.slice(HEADER_SIZE, buffer.capacity() - HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .asFloatBuffer();
+            return new DatasetCache(samples, rows, cols, new ClassLayout(classStart));
+        }
+    }
+
+    /**
+     * Opens a cache file, building it first if it does not exist yet, was written by an older version or holds
+     * images of another size
+     *
+     * @see #build(File[], int, int, Path)
+     */
+    public static DatasetCache openOrBuild(final File @NotNull [] classDirectories, final int rows, final int cols, final @NotNull Path path) throws IOException {
+        if (!isCurrent(path, rows, cols)) {
+            System.out.println("Preprocessing the dataset into " + path);
+            build(classDirectories, rows, cols, path);
+        }
+        return open(path);
+    }
+
+    /**
+     * @return whether the file exists and is a cache of the current version holding images of the given size
+     */
+    private static boolean isCurrent(final Path path, final int rows, final int cols) throws IOException {
+        if (!Files.exists(path)) {
+            return false;
+        }
+        try (InputStream stream = Files.newInputStream(path)) {
+            final ByteBuffer header = ByteBuffer.wrap(stream.readNBytes(4 * Integer.BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+            return header.remaining() == 4 * Integer.BYTES && header.getInt() == MAGIC && header.getInt() == VERSION
+                    && header.getInt() == rows && header.getInt() == cols;
+        }
+    }
+
+    /**
+     * Copies a sample's values into a matrix
+     *
+     * @param index       the sample's index
+     * @param destination a matrix of shape [rows][cols]
+     */
+    public void read(final int index, final @NotNull Matrix destination) {
+        if (destination.getRows() != rows || destination.getCols() != cols) {
+            throw new IllegalArgumentException(String.format("Matrix size mismatch. Expected [%d][%d], was [%d][%d]", rows, cols, destination.getRows(), destination.getCols()));
+        }
+        int position = Math.multiplyExact(index, rows * cols);
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                destination.set(r, c, samples.get(position++));
+            }
+        }
+    }
+
+    /**
+     * @param index the sample's index
+     * @return the sample's image and expected result
+     */
+    public TrainData get(final int index) {
+        final Matrix input = Matrix.of(rows, cols, Init.UNINITIALIZED);
+        read(index, input);
+        return new TrainData(input, new Vec(1, classes.getLabel(index)));
+    }
+
+    /**
+     * Picks a class uniformly, then a sample of that class uniformly, like {@link net.bplaced.abzzezz.util.image.ImageLoader#getRandomTrainingData()}
+     *
+     * @return a random sample
+     */
+    public TrainData getRandom() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        int c;
+        do {
+            c = random.nextInt(classes.getClasses());
+        } while (classes.getSamples(c) == 0);
+        return get(classes.getClassStart(c) + random.nextInt(classes.getSamples(c)));
+    }
+
+    /**
+     * @return where every class's samples lie
+     */
+    public ClassLayout getClassLayout() {
+        return classes;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    /**
+     * @return the preprocessed image, null if it cannot be read
+     */
+    private static float[] preprocess(final File file, final int rows, final int cols) {
+        try {
+            final byte[] data = Files.readAllBytes(file.toPath());
+            final Matrix matrix = ImageUtil.getNormalizedMatrixFromImage(data, rows, cols);
+            final float[] values = new float[rows * cols];
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < cols; c++) {
+                    values[r * cols + c] = (float) matrix.get(r, c);
+                }
+            }
+            return values;
+        } catch (final IOException | RuntimeException e) {
+            System.err.println("Skipping unreadable image " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+}
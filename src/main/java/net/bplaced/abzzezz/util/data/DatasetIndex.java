@@ -0,0 +1,181 @@
+package net.bplaced.abzzezz.util.data;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The image files of a dataset, listed once.
+ * <p>
+ * Every class is a directory, its images may lie in sub directories, e.g. one per breed. The files are sorted by class
+ * as described by the index's {@link ClassLayout}, which is also the order a {@link DatasetCache} is built in. All paths are kept as UTF-8 in a single byte array instead of one object per file.
+ * <p>
+ * An index can be saved and loaded so the directory tree is not walked on every start. A saved index is not updated
+ * when files are added or removed, delete it to list the directories again.
+ */
+public class DatasetIndex {
+
+    private static final int MAGIC = 0x434E4E49;
+    private static final int VERSION = 1;
+
+    /**
+     * All paths, one after another
+     */
+    private final byte[] paths;
+    /**
+     * The offset of every path in {@link #paths}, the last entry is the array's length
+     */
+    private final int[] pathStart;
+    private final ClassLayout classes;
+
+    private DatasetIndex(final byte[] paths, final int[] pathStart, final ClassLayout classes) {
+        this.paths = paths;
+        this.pathStart = pathStart;
+        this.classes = classes;
+    }
+
+    /**
+     * Lists all non-hidden files of the given directories and their sub directories
+     *
+     * @param classDirectories one directory per class, the n-th directory's images belong to class n
+     * @return the index
+     */
+    public static DatasetIndex build(final File @NotNull [] classDirectories) {
+        final List<byte[]> files = new ArrayList<>();
+        final int[] classStart = new int[classDirectories.length + 1];
+        for (int c = 0; c < classDirectories.length; c++) {
+            for (final File file : listFiles(classDirectories[c])) {
+                files.add(file.getPath().getBytes(StandardCharsets.UTF_8));
+            }
+            classStart[c + 1] = files.size();
+        }
+
+        final int[] pathStart = new int[files.size() + 1];
+        for (int i = 0; i < files.size(); i++) {
+            pathStart[i + 1] = pathStart[i] + files.get(i).length;
+        }
+        final byte[] paths = new byte[pathStart[files.size()]];
+        for (int i = 0; i < files.size(); i++) {
+            System.arraycopy(files.get(i), 0, paths, pathStart[i], files.get(i).length);
+        }
+        return new DatasetIndex(paths, pathStart, new ClassLayout(classStart));
+    }
+
+    /**
+     * Writes the index to a temporary file and renames it to the given path
+     *
+     * @param path the index file
+     * @throws IOException if the index cannot be written
+     */
+    public void save(final @NotNull Path path) throws IOException {
+        final Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            stream.writeInt(classes.getClasses());
+            for (int c = 1; c <= classes.getClasses(); c++) {
+                stream.writeInt(classes.getClassStart(c));
+            }
+            for (int i = 1; i < pathStart.length; i++) {
+                stream.writeInt(pathStart[i]);
+            }
+            stream.write(paths);
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads an index written by {@link #save(Path)}
+     *
+     * @param path the index file
+     * @return the index
+     * @throws IOException if the file cannot be read or is no dataset index
+     */
+    public static DatasetIndex load(final @NotNull Path path) throws IOException {
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (stream.readInt() != MAGIC) {
+                throw new IOException("Not a dataset index: " + path);
+            }
+            final int version = stream.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported dataset index version " + version);
+            }
+            final int classes = stream.readInt();
+            if (classes < 1) {
+                throw new IOException("Invalid number of classes " + classes);
+            }
+            final int[] classStart = new int[classes + 1];
+            for (int c = 1; c <= classes; c++) {
+                classStart[c] = stream.readInt();
+            }
+            final int[] pathStart = new int[classStart[classes] + 1];
+            for (int i = 1; i < pathStart.length; i++) {
+                pathStart[i] = stream.readInt();
+            }
+            final byte[] paths = new byte[pathStart[pathStart.length - 1]];
+            stream.readFully(paths);
+            return new DatasetIndex(paths, pathStart, new ClassLayout(classStart));
+        }
+    }
+
+    /**
+     * Loads an index file, building and saving it first if it does not exist yet
+     *
+     * @see #build(File[])
+     */
+    public static DatasetIndex loadOrBuild(final File @NotNull [] classDirectories, final @NotNull Path path) throws IOException {
+        if (Files.exists(path)) {
+            return load(path);
+        }
+        final DatasetIndex index = build(classDirectories);
+        index.save(path);
+        return index;
+    }
+
+    /**
+     * @param index the sample's index
+     * @return the sample's image file
+     */
+    public File getFile(final int index) {
+        return new File(new String(paths, pathStart[index], pathStart[index + 1] - pathStart[index], StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return where every class's samples lie
+     */
+    public ClassLayout getClassLayout() {
+        return classes;
+    }
+
+    /**
+     * @return all non-hidden files below the directory, sorted by path
+     */
+    static List<File> listFiles(final File directory) {
+        final List<File> files = new ArrayList<>();
+        final File[] children = directory.listFiles(file -> !file.isHidden());
+        if (children == null) {
+            return files;
+        }
+        Arrays.sort(children);
+        for (final File child : children) {
+            if (child.isDirectory()) {
+                files.addAll(listFiles(child));
+            } else {
+                files.add(child);
+            }
+        }
+        return files;
+    }
+}
@@ -0,0 +1,198 @@
+package net.bplaced.abzzezz.util.data;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Random;
+
+/**
+ * Draws sample indices in epochs, without replacement.
+ * <p>
+ * The samples are sorted by class as described by a {@link ClassLayout}, e.g. that of a {@link DatasetIndex} or
+ * {@link DatasetCache}.
+ * The same seed yields the same sequence of indices, if several threads draw from one sampler, which thread gets
+ * which index depends on their timing though.
+ */
+public class EpochSampler {
+
+    public enum Mode {
+        /**
+         * Every sample once per epoch, in random order. Classes appear as often as they occur in the dataset
+         */
+        SHUFFLE,
+        /**
+         * Every sample once per epoch, in random order within each class, with the classes spread evenly over the
+         * epoch, so every stretch of samples has about the dataset's class proportions
+         */
+        STRATIFIED,
+        /**
+         * The classes take turns in random order, so each is drawn equally often. Every class is shuffled and drawn
+         * without replacement on its own, smaller classes are reshuffled and repeated more often.
+         * An epoch ends after the largest class has been drawn completely
+         */
+        BALANCED
+    }
+
+    private final Mode mode;
+    private final Random random;
+    private final ClassLayout classes;
+
+    /**
+     * The current epoch's order, for {@link Mode#SHUFFLE} and {@link Mode#STRATIFIED}
+     */
+    private final int[] order;
+    private int position;
+
+    /**
+     * Every class's own order and position, for {@link Mode#BALANCED}
+     */
+    private final int[][] classOrder;
+    private final int[] classPosition;
+    /**
+     * The non-empty classes in the order of the current turn
+     */
+    private final int[] turn;
+    private int turnPosition;
+    private final int largestClass;
+
+    private long epoch;
+
+    /**
+     * @param classes where every class's samples lie
+     * @param mode    how to order the samples
+     * @param seed    the seed of the random order
+     */
+    public EpochSampler(final @NotNull ClassLayout classes, final @NotNull Mode mode, final long seed) {
+        this.mode = mode;
+        this.random = new Random(seed);
+        this.classes = classes;
+        final int[] classSizes = classes.getClassSizes();
+        int nonEmpty = 0;
+        int largest = 0;
+        for (int c = 0; c < classSizes.length; c++) {
+            if (classSizes[c] > 0) {
+                nonEmpty++;
+            }
+            if (classSizes[c] > classSizes[largest]) {
+                largest = c;
+            }
+        }
+        if (nonEmpty == 0) {
+            throw new IllegalArgumentException("Cannot sample from an empty dataset");
+        }
+        this.largestClass = largest;
+
+        if (mode == Mode.BALANCED) {
+            this.order = null;
+            this.classOrder = new int[classSizes.length][];
+            this.classPosition = new int[classSizes.length];
+            this.turn = new int[nonEmpty];
+            for (int c = 0, t = 0; c < classSizes.length; c++) {
+                classOrder[c] = identity(classes.getClassStart(c), classSizes[c]);
+                shuffle(classOrder[c]);
+                if (classSizes[c] > 0) {
+                    turn[t++] = c;
+                }
+            }
+            shuffle(turn);
+        } else {
+            this.order = new int[classes.size()];
+            this.classOrder = null;
+            this.classPosition = null;
+            this.turn = null;
+            fillOrder();
+        }
+    }
+
+    /**
+     * @return the next sample's index
+     */
+    public synchronized int next() {
+        if (mode == Mode.BALANCED) {
+            if (turnPosition == turn.length) {
+                shuffle(turn);
+                turnPosition = 0;
+            }
+            final int c = turn[turnPosition++];
+            if (classPosition[c] == classOrder[c].length) {
+                shuffle(classOrder[c]);
+                classPosition[c] = 0;
+                if (c == largestClass) {
+                    epoch++;
+                }
+            }
+            return classOrder[c][classPosition[c]++];
+        }
+
+        if (position == order.length) {
+            fillOrder();
+            position = 0;
+            epoch++;
+        }
+        return order[position++];
+    }
+
+    /**
+     * @return the number of completed epochs
+     */
+    public synchronized long getEpoch() {
+        return epoch;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    private void fillOrder() {
+        if (mode == Mode.SHUFFLE) {
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            shuffle(order);
+            return;
+        }
+
+        //Stratified: shuffle within every class, then always take the class lagging furthest behind its share
+        final int[][] shuffled = new int[classes.getClasses()][];
+        for (int c = 0; c < shuffled.length; c++) {
+            shuffled[c] = identity(classes.getClassStart(c), classes.getSamples(c));
+            shuffle(shuffled[c]);
+        }
+        final int[] drawn = new int[shuffled.length];
+        for (int i = 0; i < order.length; i++) {
+            int next = -1;
+            long nextDeficit = Long.MIN_VALUE;
+            for (int c = 0; c < shuffled.length; c++) {
+                if (drawn[c] == shuffled[c].length) {
+                    continue;
+                }
+                //(i + 1) * share - drawn, scaled by the number of samples
+                final long deficit = (long) (i + 1) * shuffled[c].length - (long) drawn[c] * order.length;
+                if (deficit > nextDeficit) {
+                    next = c;
+                    nextDeficit = deficit;
+                }
+            }
+            order[i] = shuffled[next][drawn[next]++];
+        }
+    }
+
+    private static int[] identity(final int start, final int length) {
+        final int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = start + i;
+        }
+        return values;
+    }
+
+    /**
+     * Fisher-Yates shuffle
+     */
+    private void shuffle(final int[] values) {
+        for (int i = values.length - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package net.bplaced.abzzezz.util.image;
+
+import net.bplaced.abzzezz.util.math.matrix.Matrix;
+import org.jetbrains.annotations.NotNull;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Shrinks photos to the network's small gray input in one pass.
+ * <p>
+ * {@link #read(File, int, int)} asks the decoder to skip pixels while decoding, so a multi-megapixel photo is never
+ * held at full resolution: only every n-th pixel and row is kept, leaving at least {@value #OVERSAMPLING} source pixels
+ * per target pixel along each axis.
+ * {@link #downscale(BufferedImage, Matrix, double)} then averages the remaining source pixels of every target pixel's
+ * area, a box filter. Every source pixel is added to exactly one target pixel, with integer sums of red, green and
+ * blue, and the averages are written straight into the matrix. There is no intermediate image and no Java2D scaling.
+ */
+public class AreaDownscaler {
+
+    /**
+     * The minimum number of decoded source pixels per target pixel along each axis, fewer would alias
+     */
+    private static final int OVERSAMPLING = 4;
+
+    /**
+     * Decodes an image, skipping pixels which are not needed for the given target size
+     *
+     * @param file   the encoded image
+     * @param width  the target width
+     * @param height the target height
+     * @return the decoded, subsampled image
+     * @throws IOException if the file is no readable image
+     */
+    public static BufferedImage read(final @NotNull File file, final int width, final int height) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            return read(input, width, height);
+        }
+    }
+
+    /**
+     * @see #read(File, int, int)
+     */
+    public static BufferedImage read(final byte @NotNull [] data, final int width, final int height) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+            return read(input, width, height);
+        }
+    }
+
+    private static BufferedImage read(final ImageInputStream input, final int width, final int height) throws IOException {
+        final Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+        if (readers == null || !readers.hasNext()) {
+            throw new IOException("Unsupported image format");
+        }
+        final ImageReader reader = readers.next();
+        try {
+            reader.setInput(input, true, true);
+            final ImageReadParam param = reader.getDefaultReadParam();
+            final int stepX = Math.max(1, reader.getWidth(0) / (width * OVERSAMPLING));
+            final int stepY = Math.max(1, reader.getHeight(0) / (height * OVERSAMPLING));
+            param.setSourceSubsampling(stepX, stepY, 0, 0);
+            return reader.read(0, param);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Averages the image's pixels into a smaller matrix, the target pixel (x, y) is written to (x, y) of the matrix.
+     * Target pixel x covers the source columns from x * sourceWidth / width up to (x + 1) * sourceWidth / width,
+     * rows likewise. Gray values are the average of red, green and blue, like {@link ImageUtil#writeGray}
+     *
+     * @param image       the image, at least as large as the matrix in both directions
+     * @param destination a matrix of shape [width][height], the target size
+     * @param scale       the factor every gray value (0-255) is multiplied with
+     */
+    public static void downscale(final @NotNull BufferedImage image, final @NotNull Matrix destination, final double scale) {
+        final int sourceWidth = image.getWidth();
+        final int sourceHeight = image.getHeight();
+        final int width = destination.getRows();
+        final int height = destination.getCols();
+        if (sourceWidth < width || sourceHeight < height) {
+            throw new IllegalArgumentException(String.format("Cannot downscale a %dx%d image to %dx%d", sourceWidth, sourceHeight, width, height));
+        }
+
+        //The target column of every source column
+        final int[] column = new int[sourceWidth];
+        for (int x = 0; x < sourceWidth; x++) {
+            column[x] = (int) ((long) x * width / sourceWidth);
+        }
+        final int[] pixels = new int[width];
+        for (int x = 0; x < sourceWidth; x++) {
+            pixels[column[x]]++;
+        }
+
+        final RgbRowReader reader = new RgbRowReader(image);
+        final int[] row = new int[sourceWidth];
+        //Sums of red, green and blue of the current target row
+        final int[] sums = new int[width];
+        final double[] values = destination.getData();
+        int sourceY = 0;
+        for (int y = 0; y < height; y++) {
+            final int endY = (int) ((long) (y + 1) * sourceHeight / height);
+            final int rows = endY - sourceY;
+            for (; sourceY < endY; sourceY++) {
+                reader.read(sourceY, row);
+                for (int x = 0; x < sourceWidth; x++) {
+                    sums[column[x]] += row[x];
+                }
+            }
+            int target = destination.index(0, y);
+            for (int x = 0; x < width; x++, target += destination.getRowStride()) {
+                values[target] = sums[x] * scale / (3.0 * pixels[x] * rows);
+                sums[x] = 0;
+            }
+        }
+    }
+}
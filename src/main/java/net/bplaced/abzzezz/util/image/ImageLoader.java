@@ -1,43 +1,141 @@
 package net.bplaced.abzzezz.util.image;
 
+import net.bplaced.abzzezz.util.Const;
 import net.bplaced.abzzezz.util.TrainData;
+import net.bplaced.abzzezz.util.data.DataLoader;
+import net.bplaced.abzzezz.util.data.DatasetCache;
+import net.bplaced.abzzezz.util.data.DatasetIndex;
+import net.bplaced.abzzezz.util.data.EpochSampler;
 import net.bplaced.abzzezz.util.math.vector.Vec;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.List;
-import java.util.concurrent.ThreadLocalRandom;
+import java.nio.file.Path;
 
 import static net.bplaced.abzzezz.util.Const.IMAGE_SIZE;
 
 public class ImageLoader {
 
+    /**
+     * The class directories, class 0 are other images, class 1 dogs, matching the expected results (0) and (1)
+     */
+    private static final File[] CLASS_DIRECTORIES = {new File("OtherImages"), new File("Images")};
+
+    /**
+     * The image files, listed on first use
+     */
+    private static DatasetIndex index;
+    /**
+     * The preprocessed dataset samples are read from instead of decoding images, null to decode
+     */
+    private static DatasetCache cache;
+    private static EpochSampler sampler;
+    private static EpochSampler.Mode samplingMode = EpochSampler.Mode.BALANCED;
+    private static long seed = Const.RANDOM.nextLong();
+
+    /**
+     * Reads all further samples from a preprocessed dataset cache, which is built from the image directories first
+     * if it does not exist yet. Delete the file after changing the images or the preprocessing
+     *
+     * @param path the cache file
+     * @throws IOException if the cache cannot be built or read
+     */
+    public static synchronized void useDatasetCache(final @NotNull Path path) throws IOException {
+        cache = DatasetCache.openOrBuild(CLASS_DIRECTORIES, IMAGE_SIZE, IMAGE_SIZE, path);
+        sampler = null;
+    }
+
+    /**
+     * Lists the image files from a saved index instead of walking the directories, the index is saved first if it
+     * does not exist yet. Delete the file after adding or removing images
+     *
+     * @param path the index file
+     * @throws IOException if the index cannot be written or read
+     */
+    public static synchronized void useDatasetIndex(final @NotNull Path path) throws IOException {
+        index = DatasetIndex.loadOrBuild(CLASS_DIRECTORIES, path);
+        sampler = null;
+    }
+
+    /**
+     * Sets the order samples are drawn in, starting a new epoch. By default the classes are balanced with a random seed
+     *
+     * @param mode how to order the samples
+     * @param seed the seed of the random order, the same seed yields the same samples
+     */
+    public static synchronized void setSampling(final @NotNull EpochSampler.Mode mode, final long seed) {
+        ImageLoader.samplingMode = mode;
+        ImageLoader.seed = seed;
+        sampler = null;
+    }
+
+    /**
+     * @return the sampler drawing the samples, created on first use
+     */
+    public static synchronized EpochSampler getSampler() {
+        if (sampler == null) {
+            listImagesIfNeeded();
+            sampler = new EpochSampler(cache != null ? cache.getClassLayout() : index.getClassLayout(), samplingMode, seed);
+        }
+        return sampler;
+    }
+
+    private static void listImagesIfNeeded() {
+        if (cache == null && index == null) {
+            index = DatasetIndex.build(CLASS_DIRECTORIES);
+        }
+    }
+
+    /**
+     * @return the next sample drawn by the {@link #getSampler() sampler}
+     * @throws IOException if the image cannot be read
+     */
     public static TrainData getRandomTrainingData() throws IOException {
-        final File dogImages = new File("Images");
-        final File otherImages = new File("OtherImages");
-        final int rnd = ThreadLocalRandom.current().nextInt(2); //2;
-        //Dog directory
-
-        //TODO: Convert vectors into constants
-        if (rnd == 0) {
-            final File randomInnerDir = getRandomFileFromDirectory(dogImages);
-            return new TrainData(ImageUtil.getNormalizedMatrixFromImage(getRandomFileFromDirectory(randomInnerDir), IMAGE_SIZE, IMAGE_SIZE), new Vec(1, 1));
-        } else { //OtherImages image directory
-            final File randomInnerDir = getRandomFileFromDirectory(otherImages);
-            return new TrainData(ImageUtil.getNormalizedMatrixFromImage(getRandomFileFromDirectory(randomInnerDir), IMAGE_SIZE, IMAGE_SIZE), new Vec(1, 0));
+        return getTrainingData(getSampler().next());
+    }
+
+    /**
+     * Reads a sample from the dataset cache or decodes its image, may be called by several threads at once
+     *
+     * @param sample the sample's index, as drawn by the {@link #getSampler() sampler}
+     * @return the sample
+     * @throws IOException if the image cannot be read
+     */
+    public static TrainData getTrainingData(final int sample) throws IOException {
+        final DatasetCache cache;
+        final DatasetIndex index;
+        synchronized (ImageLoader.class) {
+            listImagesIfNeeded();
+            cache = ImageLoader.cache;
+            index = ImageLoader.index;
+        }
+        if (cache != null) {
+            return cache.get(sample);
         }
+        return new TrainData(ImageUtil.getNormalizedMatrixFromImage(index.getFile(sample), IMAGE_SIZE, IMAGE_SIZE), new Vec(1, index.getClassLayout().getLabel(sample)));
     }
 
-    private static File getRandomFileFromDirectory(final @NotNull File dir) {
-        assert dir.listFiles() == null : "Directory list files null";
-        final List<File> files = Arrays.stream(dir.listFiles())
-                .filter(file -> !file.isHidden())
-                .toList();
+    /**
+     * Creates a loader preparing batches of samples drawn by the {@link #getSampler() sampler} in the background
+     *
+     * @see DataLoader#DataLoader(EpochSampler, DataLoader.Source, int, int, int, boolean)
+     */
+    public static DataLoader createDataLoader(final int batchSize, final int prefetch, final int workers, final boolean ordered) {
+        return new DataLoader(getSampler(), ImageLoader::getTrainingData, batchSize, prefetch, workers, ordered);
+    }
 
-        final int rnd = ThreadLocalRandom.current().nextInt(files.size());
-        return files.get(rnd);
+    /**
+     * @param size the number of samples
+     * @return random samples, see {@link #getRandomTrainingData()}
+     * @throws IOException if an image cannot be read
+     */
+    public static TrainData[] getRandomTrainingBatch(final int size) throws IOException {
+        final TrainData[] batch = new TrainData[size];
+        for (int i = 0; i < size; i++) {
+            batch[i] = getRandomTrainingData();
+        }
+        return batch;
     }
 
 }
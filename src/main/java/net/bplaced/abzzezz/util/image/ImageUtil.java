@@ -3,6 +3,7 @@ package net.bplaced.abzzezz.util.image;
 import net.bplaced.abzzezz.util.color.ColorUtil;
 import net.bplaced.abzzezz.util.math.MathUtil;
 import net.bplaced.abzzezz.util.math.matrix.Matrix;
+import net.bplaced.abzzezz.util.math.tensor.Init;
 
 import javax.imageio.ImageIO;
 import java.awt.image.*;
@@ -30,16 +31,9 @@ public class ImageUtil {
      */
     public static Matrix getMatrixFromImage(final File file, final int width, final int height) throws IOException {
         final BufferedImage br = Scalr.resize(ImageIO.read(file), Scalr.Mode.FIT_EXACT, width, height);
-        final Matrix matrix = new Matrix(width, height);
-        for (int i = 0; i < matrix.getRows(); i++) {
-            for (int j = 0; j < matrix.getCols(); j++) {
-                final int rgb = br.getRGB(i, j);
-                final int gray = ColorUtil.getGrayFromRGB(rgb);
-                final int grayToRGB = ColorUtil.convertGrayValueToRGB(gray);
-                matrix.set(i, j, grayToRGB);
-            }
-        }
-        return matrix;
+        final Matrix matrix = Matrix.of(width, height, Init.UNINITIALIZED);
+        writeGray(br, matrix, 1);
+        return matrix.applyToElement(gray -> ColorUtil.convertGrayValueToRGB((int) gray));
     }
 
     /**
@@ -53,19 +47,69 @@ public class ImageUtil {
      * @throws IOException file input / output
      */
     public static Matrix getNormalizedMatrixFromImage(final File file, final int width, final int height) throws IOException {
-        final BufferedImage br = Scalr.resize(ImageIO.read(file), Scalr.Mode.FIT_EXACT, width, height);
-        final Matrix matrix = new Matrix(width, height);
-        for (int i = 0; i < matrix.getRows(); i++) {
-            for (int j = 0; j < matrix.getCols(); j++) {
-                final int rgb = br.getRGB(i, j);
-                final int gray = ColorUtil.getGrayFromRGB(rgb);
-                //Map grayscale value to a value between 0-1
-                matrix.set(i, j, gray / 225.);
-            }
+        return getNormalizedMatrixFromImage(AreaDownscaler.read(file, width, height), width, height);
+    }
+
+    /**
+     * Converts encoded image data, e.g. a PNG or JPEG file's content, to a matrix, see {@link #getNormalizedMatrixFromImage(File, int, int)}
+     *
+     * @param data   the encoded image
+     * @param width  desired with
+     * @param height desired height
+     * @return the matrix
+     * @throws IOException if the data is no readable image
+     */
+    public static Matrix getNormalizedMatrixFromImage(final byte[] data, final int width, final int height) throws IOException {
+        return getNormalizedMatrixFromImage(AreaDownscaler.read(data, width, height), width, height);
+    }
+
+    /**
+     * Downscales a decoded image to a given width and height, then greyscales and normalizes it.
+     * Images at least as large as the target are area averaged by the {@link AreaDownscaler}, smaller ones are scaled up
+     *
+     * @param image  the image
+     * @param width  desired with
+     * @param height desired height
+     * @return the matrix
+     */
+    public static Matrix getNormalizedMatrixFromImage(final BufferedImage image, final int width, final int height) {
+        final Matrix matrix = Matrix.of(width, height, Init.UNINITIALIZED);
+        //Map grayscale value to a value between 0-1
+        if (image.getWidth() >= width && image.getHeight() >= height) {
+            AreaDownscaler.downscale(image, matrix, 1 / 255.);
+        } else {
+            writeGray(Scalr.resize(image, Scalr.Mode.FIT_EXACT, width, height), matrix, 1 / 255.);
         }
         return matrix;
     }
 
+    /**
+     * Greyscales an image into a matrix, the pixel (x, y) is written to (x, y) of the matrix.
+     * The gray value is the average of red, green and blue like {@link ColorUtil#getGrayFromRGB(int)}, gray images'
+     * values are taken as they are. The common image types are read directly from their raster, see {@link RgbRowReader}
+     *
+     * @param image       the image
+     * @param destination a matrix of shape [width][height]
+     * @param scale       the factor every gray value (0-255) is multiplied with
+     */
+    public static void writeGray(final BufferedImage image, final Matrix destination, final double scale) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        if (destination.getRows() != width || destination.getCols() != height) {
+            throw new IllegalArgumentException(String.format("Matrix size mismatch. Expected [%d][%d], was [%d][%d]", width, height, destination.getRows(), destination.getCols()));
+        }
+        final RgbRowReader reader = new RgbRowReader(image);
+        final int[] sums = new int[width];
+        final double[] values = destination.getData();
+        for (int y = 0; y < height; y++) {
+            reader.read(y, sums);
+            int target = destination.index(0, y);
+            for (int x = 0; x < width; x++, target += destination.getRowStride()) {
+                values[target] = sums[x] / 3 * scale;
+            }
+        }
+    }
+
     /**
      * Writes a given matrix to an image file
      *
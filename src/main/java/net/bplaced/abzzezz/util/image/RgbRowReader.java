@@ -0,0 +1,103 @@
+package net.bplaced.abzzezz.util.image;
+
+import java.awt.image.*;
+
+/**
+ * Reads an image row by row as the sum of every pixel's red, green and blue value, 0 - 765.
+ * <p>
+ * The common image types, INT_RGB, INT_ARGB, 3BYTE_BGR, 4BYTE_ABGR and BYTE_GRAY, are read directly from their
+ * raster's data array, every other type through {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}.
+ * Gray images' values are taken as they are, counting three times.
+ */
+final class RgbRowReader {
+
+    private static final int PACKED = 0;
+    private static final int BYTES = 1;
+    private static final int GENERIC = 2;
+
+    private final BufferedImage image;
+    private final int width;
+    private final int kind;
+
+    private int[] ints;
+    private byte[] bytes;
+    /**
+     * The data array index of the raster's first pixel
+     */
+    private int base;
+    private int scanline;
+    private int pixel;
+    private int[] bands;
+    private int[] row;
+
+    RgbRowReader(final BufferedImage image) {
+        this.image = image;
+        this.width = image.getWidth();
+        final WritableRaster raster = image.getRaster();
+        final DataBuffer buffer = raster.getDataBuffer();
+        final SampleModel model = raster.getSampleModel();
+
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB -> {
+                final SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) model;
+                this.kind = PACKED;
+                this.ints = ((DataBufferInt) buffer).getData();
+                this.scanline = packed.getScanlineStride();
+                this.base = buffer.getOffset() + packed.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+            }
+            case BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_GRAY -> {
+                final ComponentSampleModel component = (ComponentSampleModel) model;
+                this.kind = BYTES;
+                this.bytes = ((DataBufferByte) buffer).getData();
+                this.scanline = component.getScanlineStride();
+                this.pixel = component.getPixelStride();
+                this.bands = component.getBandOffsets();
+                //Without the band offset getOffset(x, y) adds
+                this.base = buffer.getOffset() - raster.getSampleModelTranslateX() * pixel - raster.getSampleModelTranslateY() * scanline;
+            }
+            default -> {
+                this.kind = GENERIC;
+                this.row = new int[width];
+            }
+        }
+    }
+
+    /**
+     * @param y    the row
+     * @param sums receives the sum of red, green and blue of the row's pixels, at least as long as the image is wide
+     */
+    void read(final int y, final int[] sums) {
+        switch (kind) {
+            case PACKED -> {
+                int source = base + y * scanline;
+                for (int x = 0; x < width; x++) {
+                    final int rgb = ints[source++];
+                    sums[x] = ((rgb >> 16) & 0xFF) + ((rgb >> 8) & 0xFF) + (rgb & 0xFF);
+                }
+            }
+            case BYTES -> {
+                int source = base + y * scanline;
+                if (bands.length == 1) {
+                    for (int x = 0; x < width; x++, source += pixel) {
+                        sums[x] = 3 * (bytes[source] & 0xFF);
+                    }
+                } else {
+                    //Bands 0, 1 and 2 are red, green and blue
+                    final int r = bands[0];
+                    final int g = bands[1];
+                    final int b = bands[2];
+                    for (int x = 0; x < width; x++, source += pixel) {
+                        sums[x] = (bytes[source + r] & 0xFF) + (bytes[source + g] & 0xFF) + (bytes[source + b] & 0xFF);
+                    }
+                }
+            }
+            default -> {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                for (int x = 0; x < width; x++) {
+                    final int rgb = row[x];
+                    sums[x] = ((rgb >> 16) & 0xFF) + ((rgb >> 8) & 0xFF) + (rgb & 0xFF);
+                }
+            }
+        }
+    }
+}
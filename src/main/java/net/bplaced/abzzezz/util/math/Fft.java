@@ -0,0 +1,162 @@
+package net.bplaced.abzzezz.util.math;
+
+/**
+ * Iterative radix-2 fast Fourier transform of a fixed, power-of-two size.
+ * <p>
+ * Complex values are kept in two separate arrays for the real and imaginary parts, a plane of size x size values
+ * is stored row by row. A two-dimensional transform is computed as a transform of every row, a transpose and
+ * another transform of every row, so the resulting spectrum is stored transposed. As long as spectra are only
+ * multiplied element-wise and transformed back with {@link #inverse2d}, this makes no difference.
+ * <p>
+ * The inverse transform is not normalized, its results have to be divided by size² (or size for a single row).
+ */
+public class Fft {
+
+    private final int size;
+    private final double[] cos;
+    private final double[] sin;
+    private final int[] reverse;
+
+    /**
+     * @param size the transform's length, a power of two
+     */
+    public Fft(final int size) {
+        if (size < 1 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Transform size must be a power of two, was " + size);
+        }
+        this.size = size;
+        this.cos = new double[size / 2];
+        this.sin = new double[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / size);
+            sin[i] = Math.sin(2 * Math.PI * i / size);
+        }
+        this.reverse = new int[size];
+        final int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++) {
+            reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    /**
+     * @param minimum the minimum length
+     * @return the smallest power of two greater than or equal to the minimum
+     */
+    public static int size(final int minimum) {
+        return minimum <= 1 ? 1 : Integer.highestOneBit(minimum - 1) << 1;
+    }
+
+    /**
+     * Transforms consecutive rows of length size in place
+     *
+     * @param re      the real parts
+     * @param im      the imaginary parts
+     * @param offset  index of the first row's first value
+     * @param rows    the number of rows
+     * @param inverse true for the (unnormalized) inverse transform
+     */
+    public void transformRows(final double[] re, final double[] im, final int offset, final int rows, final boolean inverse) {
+        for (int r = 0; r < rows; r++) {
+            transform(re, im, offset + r * size, inverse);
+        }
+    }
+
+    /**
+     * Two-dimensional transform of a plane whose rows from {@code rows} on are zero. The spectrum is written transposed
+     * into the destination, the source is overwritten
+     *
+     * @param re            the plane's real parts
+     * @param im            the plane's imaginary parts
+     * @param rows          the number of leading rows which may be non-zero
+     * @param destinationRe the spectrum's real parts
+     * @param destinationIm the spectrum's imaginary parts
+     */
+    public void forward2d(final double[] re, final double[] im, final int rows,
+                          final double[] destinationRe, final double[] destinationIm) {
+        transformRows(re, im, 0, rows, false);
+        //The remaining rows are zero, so are their transforms
+        transpose(re, destinationRe, rows);
+        transpose(im, destinationIm, rows);
+        transformRows(destinationRe, destinationIm, 0, size, false);
+    }
+
+    /**
+     * Inverse of {@link #forward2d}. Only the first {@code rows} rows of the result are computed, the spectrum is
+     * overwritten
+     *
+     * @param re            the transposed spectrum's real parts
+     * @param im            the transposed spectrum's imaginary parts
+     * @param rows          the number of leading rows of the result which are needed
+     * @param destinationRe the result's real parts, size * size values of which the first rows are written
+     * @param destinationIm the result's imaginary parts
+     */
+    public void inverse2d(final double[] re, final double[] im, final int rows,
+                          final double[] destinationRe, final double[] destinationIm) {
+        transformRows(re, im, 0, size, true);
+        //Transposed back, only the needed rows are gathered and transformed
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < size; c++) {
+                destinationRe[r * size + c] = re[c * size + r];
+                destinationIm[r * size + c] = im[c * size + r];
+            }
+        }
+        transformRows(destinationRe, destinationIm, 0, rows, true);
+    }
+
+    /**
+     * Writes the transpose of a plane, whose rows from {@code rows} on are zero, into the destination
+     */
+    private void transpose(final double[] source, final double[] destination, final int rows) {
+        for (int c = 0; c < size; c++) {
+            final int row = c * size;
+            for (int r = 0; r < rows; r++) {
+                destination[row + r] = source[r * size + c];
+            }
+            for (int r = rows; r < size; r++) {
+                destination[row + r] = 0;
+            }
+        }
+    }
+
+    /**
+     * Cooley-Tukey: bit-reversal permutation followed by log2(size) passes of butterflies
+     */
+    private void transform(final double[] re, final double[] im, final int start, final boolean inverse) {
+        for (int i = 0; i < size; i++) {
+            final int j = reverse[i];
+            if (i < j) {
+                final double r = re[start + i];
+                re[start + i] = re[start + j];
+                re[start + j] = r;
+                final double m = im[start + i];
+                im[start + i] = im[start + j];
+                im[start + j] = m;
+            }
+        }
+        final double sign = inverse ? 1 : -1;
+        for (int length = 2; length <= size; length <<= 1) {
+            final int half = length >> 1;
+            final int step = size / length;
+            for (int j = 0; j < half; j++) {
+                final double wr = cos[j * step];
+                final double wi = sign * sin[j * step];
+                for (int a = start + j; a < start + size; a += length) {
+                    final int b = a + half;
+                    final double tr = re[b] * wr - im[b] * wi;
+                    final double ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the transform's length
+     */
+    public int getSize() {
+        return size;
+    }
+}
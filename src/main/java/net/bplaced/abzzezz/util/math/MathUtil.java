@@ -1,33 +1,46 @@
 package net.bplaced.abzzezz.util.math;
 
-import java.util.function.DoubleFunction;
-import java.util.function.Function;
+import java.util.function.DoubleUnaryOperator;
 
 public class MathUtil {
 
     public enum ActivationFunction {
 
-        SIGMOID(x -> 1 / (1 + Math.exp(-x)), x -> sigmoid(x) * (1 - sigmoid(x))),
+        SIGMOID(MathUtil::sigmoid, x -> sigmoid(x) * (1 - sigmoid(x))),
         TANH(x -> Math.tanh(x), x -> 1 - Math.pow(Math.tanh(x), 2)),
         RELU(x -> Math.max(0, x), x -> x > 0. ? 1. : 0.),
         LEAKY_RELU(x -> Math.max(0.01 * x, x), x -> x > 0. ? 1. : 0.01),
-        SOFTMAX(x -> Math.exp(x) / (Math.exp(x) + 1), x -> Math.exp(x) / (Math.exp(x) + 1)),
+        SOFTMAX(MathUtil::sigmoid, x -> sigmoid(x) * (1 - sigmoid(x))),
         LINEAR(x -> x, x -> 1.);
 
-        private final DoubleFunction<Double> function;
-        private final DoubleFunction<Double> derivative;
+        private final DoubleUnaryOperator function;
+        private final DoubleUnaryOperator derivative;
 
-        ActivationFunction(final DoubleFunction<Double> function, final DoubleFunction<Double> derivative) {
+        ActivationFunction(final DoubleUnaryOperator function, final DoubleUnaryOperator derivative) {
             this.function = function;
             this.derivative = derivative;
         }
 
         public double apply(final double value) {
-            return function.apply(value);
+            return function.applyAsDouble(value);
         }
 
         public double applyDerivative(final double value) {
-            return derivative.apply(value);
+            return derivative.applyAsDouble(value);
+        }
+
+        /**
+         * @return the function as an element-wise operator, e.g. for {@link net.bplaced.abzzezz.util.math.vector.Vec#applyToElement(DoubleUnaryOperator)}
+         */
+        public DoubleUnaryOperator function() {
+            return function;
+        }
+
+        /**
+         * @return the derivative as an element-wise operator
+         */
+        public DoubleUnaryOperator derivative() {
+            return derivative;
         }
 
     }
@@ -43,7 +56,12 @@ public class MathUtil {
      * @return the sigmoid value
      */
     public static double sigmoid(final double value) {
-        return 1 / (1 + Math.exp(-value));
+        //exp only of non-positive values, which cannot overflow
+        if (value >= 0) {
+            return 1 / (1 + Math.exp(-value));
+        }
+        final double exp = Math.exp(value);
+        return exp / (1 + exp);
     }
 
     /**
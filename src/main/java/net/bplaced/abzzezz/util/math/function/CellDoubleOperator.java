@@ -0,0 +1,16 @@
+package net.bplaced.abzzezz.util.math.function;
+
+/**
+ * An element-wise operation on a matrix which also depends on the element's row and column, without boxing
+ */
+@FunctionalInterface
+public interface CellDoubleOperator {
+
+    /**
+     * @param row   the element's row
+     * @param col   the element's column
+     * @param value the element's current value
+     * @return the element's new value
+     */
+    double applyAsDouble(int row, int col, double value);
+}
@@ -0,0 +1,15 @@
+package net.bplaced.abzzezz.util.math.function;
+
+/**
+ * An element-wise operation on a vector which also depends on the element's position, without boxing
+ */
+@FunctionalInterface
+public interface IndexedDoubleOperator {
+
+    /**
+     * @param index the element's index
+     * @param value the element's current value
+     * @return the element's new value
+     */
+    double applyAsDouble(int index, double value);
+}
@@ -0,0 +1,150 @@
+package net.bplaced.abzzezz.util.math.matrix;
+
+import net.bplaced.abzzezz.util.math.simd.ArrayMath;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Cache-blocked general matrix multiplication C = A * B (+ C) on the flat, strided matrix storage.
+ * <p>
+ * The product is computed tile by tile, so that a block of A's rows and a panel of B stay in the caches while they are reused.
+ * Depending on the layout of B one of two inner kernels is chosen:
+ * if B's rows are densely packed, a row of C is updated as C[i] += A[i][k] * B[k] (streaming over B's rows);
+ * if B is a transposed view, i.e. its columns are densely packed, every element of C is a dot product of two dense runs.
+ * Both inner loops walk memory sequentially, which lets the JIT vectorize them.
+ */
+public class Gemm {
+
+    /**
+     * Rows of A (and C) per block
+     */
+    private static final int BLOCK_ROWS = 64;
+    /**
+     * Shared dimension per block, a block of B of this height should fit into the L2 cache
+     */
+    private static final int BLOCK_DEPTH = 256;
+    /**
+     * Columns of B (and C) per block
+     */
+    private static final int BLOCK_COLS = 512;
+
+    /**
+     * Multiplies two matrices of shape [m][k] and [k][n] into a matrix of shape [m][n]
+     *
+     * @param a          the left matrix
+     * @param b          the right matrix
+     * @param c          the result, may be a view, must not overlap a or b
+     * @param accumulate if true, the product is added to c's values instead of overwriting them
+     */
+    public static void multiply(@NotNull final Matrix a, @NotNull final Matrix b, @NotNull final Matrix c, final boolean accumulate) {
+        if (a.getCols() != b.getRows() || c.getRows() != a.getRows() || c.getCols() != b.getCols()) {
+            throw new IllegalArgumentException(String.format("Matrix size mismatch. Cannot multiply [%d][%d] by [%d][%d] into [%d][%d]",
+                    a.getRows(), a.getCols(), b.getRows(), b.getCols(), c.getRows(), c.getCols()));
+        }
+        if (!accumulate) {
+            c.fillZeros();
+        }
+        if (b.getColStride() == 1 || b.getRowStride() != 1) {
+            multiplyRowMajor(a, b, c);
+        } else {
+            multiplyTransposed(a, b, c);
+        }
+    }
+
+    /**
+     * C[i] += A[i][k] * B[k], for a B whose rows are read sequentially
+     */
+    private static void multiplyRowMajor(final Matrix a, final Matrix b, final Matrix c) {
+        final int m = a.getRows();
+        final int depth = a.getCols();
+        final int n = b.getCols();
+
+        final double[] ad = a.getData();
+        final double[] bd = b.getData();
+        final double[] cd = c.getData();
+        final int aColStride = a.getColStride();
+        final int bColStride = b.getColStride();
+        final int cColStride = c.getColStride();
+
+        for (int j0 = 0; j0 < n; j0 += BLOCK_COLS) {
+            final int j1 = Math.min(n, j0 + BLOCK_COLS);
+            for (int k0 = 0; k0 < depth; k0 += BLOCK_DEPTH) {
+                final int k1 = Math.min(depth, k0 + BLOCK_DEPTH);
+                for (int i0 = 0; i0 < m; i0 += BLOCK_ROWS) {
+                    final int i1 = Math.min(m, i0 + BLOCK_ROWS);
+
+                    for (int i = i0; i < i1; i++) {
+                        final int aRow = a.index(i, 0);
+                        final int cRow = c.index(i, j0);
+                        int k = k0;
+                        if (bColStride == 1 && cColStride == 1) {
+                            //Four rows of B per pass, so that the row of C is loaded and stored a quarter as often
+                            final int bRowStride = b.getRowStride();
+                            for (; k + 3 < k1; k += 4) {
+                                final double a0 = ad[aRow + k * aColStride];
+                                final double a1 = ad[aRow + (k + 1) * aColStride];
+                                final double a2 = ad[aRow + (k + 2) * aColStride];
+                                final double a3 = ad[aRow + (k + 3) * aColStride];
+                                final int b0 = b.index(k, j0);
+                                final int b1 = b0 + bRowStride;
+                                final int b2 = b1 + bRowStride;
+                                final int b3 = b2 + bRowStride;
+                                for (int j = 0; j < j1 - j0; j++) {
+                                    cd[cRow + j] += a0 * bd[b0 + j] + a1 * bd[b1 + j] + a2 * bd[b2 + j] + a3 * bd[b3 + j];
+                                }
+                            }
+                        }
+                        for (; k < k1; k++) {
+                            final double aik = ad[aRow + k * aColStride];
+                            final int bRow = b.index(k, j0);
+                            if (bColStride == 1 && cColStride == 1) {
+                                for (int j = 0; j < j1 - j0; j++) {
+                                    cd[cRow + j] += aik * bd[bRow + j];
+                                }
+                            } else {
+                                for (int j = 0; j < j1 - j0; j++) {
+                                    cd[cRow + j * cColStride] += aik * bd[bRow + j * bColStride];
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * C[i][j] += A[i] . B^T[j], for a B which is a transposed view, i.e. whose columns are densely packed
+     */
+    private static void multiplyTransposed(final Matrix a, final Matrix b, final Matrix c) {
+        final int m = a.getRows();
+        final int depth = a.getCols();
+        final int n = b.getCols();
+
+        final double[] ad = a.getData();
+        final double[] bd = b.getData();
+        final double[] cd = c.getData();
+        final int aColStride = a.getColStride();
+
+        for (int k0 = 0; k0 < depth; k0 += BLOCK_DEPTH * 4) {
+            final int k1 = Math.min(depth, k0 + BLOCK_DEPTH * 4);
+            for (int i0 = 0; i0 < m; i0 += BLOCK_ROWS) {
+                final int i1 = Math.min(m, i0 + BLOCK_ROWS);
+                for (int j = 0; j < n; j++) {
+                    final int bColumn = b.index(k0, j);
+                    for (int i = i0; i < i1; i++) {
+                        final int aRow = a.index(i, k0);
+                        double sum = 0;
+                        if (aColStride == 1) {
+                            sum = ArrayMath.dot(ad, aRow, bd, bColumn, k1 - k0);
+                        } else {
+                            for (int k = 0; k < k1 - k0; k++) {
+                                sum += ad[aRow + k * aColStride] * bd[bColumn + k];
+                            }
+                        }
+                        cd[c.index(i, j)] += sum;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -1,25 +1,31 @@
 package net.bplaced.abzzezz.util.math.matrix;
 
+import net.bplaced.abzzezz.util.math.function.CellDoubleOperator;
+import net.bplaced.abzzezz.util.math.simd.ArrayMath;
+import net.bplaced.abzzezz.util.math.tensor.Init;
+import net.bplaced.abzzezz.util.math.tensor.Tensor;
 import net.bplaced.abzzezz.util.math.vector.Vec;
 
+import java.util.Arrays;
 import java.util.Optional;
-import java.util.concurrent.ThreadLocalRandom;
-import java.util.function.BiFunction;
-import java.util.function.Function;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
 
 import static net.bplaced.abzzezz.util.Const.RANDOM;
 
-public class Matrix {
+public class Matrix extends Tensor {
     /**
-     * the matrix's data:
+     * the matrix's data is stored row-major in one flat array:
      * Row -->   Column
      * [0, 0, 0]   ↓
      * [0, 0, 0]   ↓
      * ↓
+     * becomes [0, 0, 0, 0, 0, 0], the element (row, col) lives at offset + row * rowStride + col * colStride
      */
-    private final double[][] data;
     private final int rows;
     private final int cols;
+    private final int rowStride;
+    private final int colStride;
 
     /**
      * Initialize a new matrix with all random values
@@ -28,17 +34,63 @@ public class Matrix {
      * @param cols the matrix's desired columns
      */
     public Matrix(final int rows, final int cols) {
-        this.rows = rows;
-        this.cols = cols;
-        this.data = new double[rows][cols];
-        this.randomize();
+        this(new double[rows * cols], 0, rows, cols);
+        Init.GAUSSIAN.initialize(data, 0, rows * cols);
     }
 
     public Matrix(final int rows, final int cols, final double value) {
+        this(new double[rows * cols], 0, rows, cols);
+        Init.fill(value).initialize(data, 0, rows * cols);
+    }
+
+    /**
+     * Allocates a new matrix with an explicit initialization strategy.
+     * Temporaries which are overwritten anyway should be created with {@link Init#UNINITIALIZED}
+     *
+     * @param rows the matrix's rows
+     * @param cols the matrix's columns
+     * @param init strategy to fill the matrix with
+     * @return the new matrix
+     */
+    public static Matrix of(final int rows, final int cols, final Init init) {
+        final Matrix matrix = new Matrix(new double[rows * cols], 0, rows, cols);
+        //A fresh array is already all zeros
+        if (init != Init.ZEROS) {
+            init.initialize(matrix.data, 0, rows * cols);
+        }
+        return matrix;
+    }
+
+    /**
+     * Creates a matrix on top of an existing, densely packed region of a backing array.
+     * No values are copied, writes to the matrix are visible in the backing array
+     *
+     * @param data   the backing array
+     * @param offset index of the matrix's first element
+     * @param rows   the matrix's rows
+     * @param cols   the matrix's columns
+     */
+    public Matrix(final double[] data, final int offset, final int rows, final int cols) {
+        this(data, offset, rows, cols, cols, 1);
+    }
+
+    /**
+     * Creates a strided view on top of an existing backing array.
+     * No values are copied, writes to the matrix are visible in the backing array and all other views of it
+     *
+     * @param data      the backing array
+     * @param offset    index of the matrix's first element
+     * @param rows      the matrix's rows
+     * @param cols      the matrix's columns
+     * @param rowStride distance between two vertically neighbouring elements
+     * @param colStride distance between two horizontally neighbouring elements
+     */
+    public Matrix(final double[] data, final int offset, final int rows, final int cols, final int rowStride, final int colStride) {
+        super(data, offset, new int[]{rows, cols}, new int[]{rowStride, colStride});
         this.rows = rows;
         this.cols = cols;
-        this.data = new double[rows][cols];
-        this.fill(value);
+        this.rowStride = rowStride;
+        this.colStride = colStride;
     }
 
     /**
@@ -52,7 +104,7 @@ public class Matrix {
      * Fills the matrix with all zeros
      */
     public void fillZeros() {
-        this.applyToElement(value -> 0.);
+        this.fill(0);
     }
 
     /**
@@ -61,7 +113,16 @@ public class Matrix {
      * @param value the value to fill the matrix with
      */
     public void fill(final double value) {
-        this.applyToElement((integer) -> value);
+        if (isContiguous()) {
+            Arrays.fill(data, offset, offset + rows * cols, value);
+            return;
+        }
+        for (int i = 0; i < rows; i++) {
+            final int rowStart = index(i, 0);
+            for (int j = 0; j < cols; j++) {
+                data[rowStart + j * colStride] = value;
+            }
+        }
     }
 
     /**
@@ -85,7 +146,42 @@ public class Matrix {
             return null;
             //throw new RuntimeException("Matrix mismatch");
         }
-        this.applyToElement((row, col) -> data[row][col] + matrix.get(row, col));
+        for (int i = 0; i < rows; i++) {
+            final int destination = index(i, 0);
+            final int source = matrix.index(i, 0);
+            if (colStride == 1 && matrix.colStride == 1) {
+                ArrayMath.add(data, destination, matrix.data, source, cols);
+            } else {
+                for (int j = 0; j < cols; j++) {
+                    data[destination + j * colStride] += matrix.data[source + j * matrix.colStride];
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Element-wise adds another matrix multiplied by a factor, i.e. this += factor * matrix.
+     * The other matrix is only read, so views can be accumulated without copying them first
+     *
+     * @param matrix the matrix to add
+     * @param factor the factor to multiply the other matrix's elements with
+     */
+    public Matrix addScaled(final Matrix matrix, final double factor) {
+        if (matrix.rows != rows || matrix.cols != cols) {
+            throw new IllegalArgumentException("Matrix size mismatch. Cannot add matrices.");
+        }
+        for (int i = 0; i < rows; i++) {
+            final int destination = index(i, 0);
+            final int source = matrix.index(i, 0);
+            if (colStride == 1 && matrix.colStride == 1) {
+                ArrayMath.axpy(factor, matrix.data, source, data, destination, cols);
+            } else {
+                for (int j = 0; j < cols; j++) {
+                    data[destination + j * colStride] += factor * matrix.data[source + j * matrix.colStride];
+                }
+            }
+        }
         return this;
     }
 
@@ -105,17 +201,11 @@ public class Matrix {
      * @return a new matrix with the current matrix's padded
      */
     public Matrix pad(final int paddingSize) {
-        final Matrix matrix = new Matrix(getRows() + (paddingSize * 2), getCols() + (paddingSize * 2));
-        //Fill the new matrix with zeros
-        matrix.fillZeros();
+        //The new matrix is filled with zeros
+        final Matrix matrix = Matrix.of(getRows() + (paddingSize * 2), getCols() + (paddingSize * 2), Init.ZEROS);
         //Transfer the current matrix's values into the new matrix, which are then surrounded by padding,
         //See the example above
-        for (int i = 0; i < getRows(); i++) {
-            for (int j = 0; j < getCols(); j++) {
-                final double data = get(i, j);
-                matrix.set(i + paddingSize, j + paddingSize, data);
-            }
-        }
+        matrix.view(paddingSize, paddingSize, rows, cols).copyFrom(this);
         return matrix;
     }
 
@@ -134,11 +224,14 @@ public class Matrix {
      * @return the matrix's max value
      */
     public double maxValue() {
-        double max = data[0][0];
+        double max = data[offset];
         for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < cols; j++) {
-                if (get(i, j) >= max) {
-                    max = get(i, j);
+            final int rowStart = index(i, 0);
+            if (colStride == 1) {
+                max = Math.max(max, ArrayMath.max(data, rowStart, cols));
+            } else {
+                for (int j = 0; j < cols; j++) {
+                    max = Math.max(max, data[rowStart + j * colStride]);
                 }
             }
         }
@@ -170,7 +263,17 @@ public class Matrix {
             System.err.println("Matrix mismatch. Cannot multiply matrices");
             return null;
         }
-        this.applyToElement((row, col) -> data[row][col] * matrix.get(row, col));
+        for (int i = 0; i < rows; i++) {
+            final int destination = index(i, 0);
+            final int source = matrix.index(i, 0);
+            if (colStride == 1 && matrix.colStride == 1) {
+                ArrayMath.multiply(data, destination, matrix.data, source, cols);
+            } else {
+                for (int j = 0; j < cols; j++) {
+                    data[destination + j * colStride] *= matrix.data[source + j * matrix.colStride];
+                }
+            }
+        }
         return this;
     }
 
@@ -193,8 +296,9 @@ public class Matrix {
     public double sum() {
         double sum = 0;
         for (int i = 0; i < rows; i++) {
+            final int rowStart = index(i, 0);
             for (int j = 0; j < cols; j++) {
-                sum += get(i, j);
+                sum += data[rowStart + j * colStride];
             }
         }
         return sum;
@@ -211,13 +315,7 @@ public class Matrix {
             System.err.println("Matrix mismatch. Cannot multiply matrices and sum the result.");
             return -1;
         }
-        double sum = 0;
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < cols; j++) {
-                sum += get(i, j) * matrix.get(i, j);
-            }
-        }
-        return sum;
+        return MatrixUtil.sumAndMultiply(this, matrix);
     }
 
     /**
@@ -235,15 +333,51 @@ public class Matrix {
             System.err.println("Requested sub-matrix width or height exceeds the matrix's bounds.");
             return null;
         }
-        final Matrix temp = new Matrix(width, height);
+        final Matrix temp = Matrix.of(width, height, Init.UNINITIALIZED);
+        temp.copyFrom(view(row, col, width, height));
+        return temp;
+    }
 
-        for (int i = row, i1 = 0; i < row + width; i++, i1++) {
-            for (int j = col, j1 = 0; j < col + height; j++, j1++) {
-                final double data = get(i, j);
-                temp.set(i1, j1, data);
-            }
+    /**
+     * Creates a view of a rectangular region of the matrix. Unlike {@link #subMatrix(int, int, int, int)}
+     * nothing is allocated apart from the view itself, the view reads and writes through to this matrix's data
+     *
+     * @param row  row to start at
+     * @param col  column to start at
+     * @param rows the view's rows
+     * @param cols the view's columns
+     * @return a matrix sharing this matrix's backing array
+     */
+    public Matrix view(final int row, final int col, final int rows, final int cols) {
+        if (row < 0 || col < 0 || row + rows > this.rows || col + cols > this.cols) {
+            throw new IndexOutOfBoundsException("Requested view exceeds the matrix's bounds.");
         }
-        return temp;
+        return new Matrix(data, index(row, col), rows, cols, rowStride, colStride);
+    }
+
+    /**
+     * @param row the row's index
+     * @return a vector viewing the row in place
+     */
+    public Vec rowView(final int row) {
+        return new Vec(data, index(row, 0), cols, colStride);
+    }
+
+    /**
+     * @param column the column's index
+     * @return a vector viewing the column in place
+     */
+    public Vec columnView(final int column) {
+        return new Vec(data, index(0, column), rows, rowStride);
+    }
+
+    /**
+     * Creates a transposed view of the matrix by swapping the strides, no values are moved
+     *
+     * @return a matrix sharing this matrix's backing array with rows and columns swapped
+     */
+    public Matrix transposedView() {
+        return new Matrix(data, offset, cols, rows, colStride, rowStride);
     }
 
     /**
@@ -271,7 +405,7 @@ public class Matrix {
     public void print() {
         for (int i = 0; i < getRows(); i++) {
             for (int j = 0; j < getCols(); j++) {
-                System.out.printf("%f \t", data[i][j]);
+                System.out.printf("%f \t", get(i, j));
             }
             System.out.println();
         }
@@ -283,54 +417,157 @@ public class Matrix {
      * @return vec with the matrix's data
      */
     public Vec toVec() {
-        final Vec vec = new Vec(rows * cols);
+        final double[] values = new double[rows * cols];
+        copyTo(values, 0);
+        return new Vec(values);
+    }
+
+    /**
+     * Copies the matrix's values row by row into a flat array
+     *
+     * @param destination the array to copy into
+     * @param position    the index in the destination to start at
+     */
+    public void copyTo(final double[] destination, final int position) {
+        new Matrix(destination, position, rows, cols).copyFrom(this);
+    }
+
+    /**
+     * Overwrites the matrix's values row by row from a flat array
+     *
+     * @param source   the array to copy from
+     * @param position the index in the source to start at
+     */
+    public void copyFrom(final double[] source, final int position) {
+        copyFrom(new Matrix(source, position, rows, cols));
+    }
+
+    /**
+     * Overwrites the matrix's values with the values of another matrix or view of the same size.
+     * Rows which are densely packed in both matrices are block copied
+     *
+     * @param matrix the matrix to copy from
+     */
+    public void copyFrom(final Matrix matrix) {
+        if (matrix.rows != rows || matrix.cols != cols) {
+            throw new IllegalArgumentException("Matrix size mismatch. Cannot copy matrix.");
+        }
         for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < cols; j++) {
-                final double value = data[i][j];
-                final int index = i * rows + j;
-            /*
-                System.out.println("index = " + index);
-                System.out.println("i = " + i);
-                System.out.println("rows = " + rows);
-                System.out.println("j = " + j);
-                System.out.println("cols = " + cols);
-
-             */
-
-                vec.set(index, value);
+            final int source = matrix.index(i, 0);
+            final int destination = index(i, 0);
+            if (colStride == 1 && matrix.colStride == 1) {
+                System.arraycopy(matrix.data, source, data, destination, cols);
+            } else {
+                for (int j = 0; j < cols; j++) {
+                    data[destination + j * colStride] = matrix.data[source + j * matrix.colStride];
+                }
             }
         }
-        return vec;
     }
 
     /**
-     * Applies a given function to each element
+     * Applies a given function to each element, in place
      *
      * @param function Function which takes in a double (the value at the position)
      *                 and returns a new double which in turn is the elements new value at the particular position
+     * @return this matrix
+     */
+    public Matrix applyToElement(final DoubleUnaryOperator function) {
+        for (int i = 0; i < rows; i++) {
+            final int rowStart = index(i, 0);
+            for (int j = 0; j < cols; j++) {
+                final int index = rowStart + j * colStride;
+                this.data[index] = function.applyAsDouble(data[index]);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Applies a given function to each element, in place, the function is also given the element's position
+     *
+     * @param function function from the element's row, column and value to its new value
+     * @return this matrix
      */
-    private void applyToElement(final Function<Double, Double> function) {
+    public Matrix applyToElement(final CellDoubleOperator function) {
         for (int i = 0; i < rows; i++) {
+            final int rowStart = index(i, 0);
             for (int j = 0; j < cols; j++) {
-                this.data[i][j] = function.apply(data[i][j]);
+                final int index = rowStart + j * colStride;
+                this.data[index] = function.applyAsDouble(i, j, data[index]);
             }
         }
+        return this;
+    }
+
+    /**
+     * Applies a given function to each element and writes the results into another, equally sized matrix
+     *
+     * @param function    the function to apply
+     * @param destination the matrix to write to, may be this matrix
+     * @return the destination
+     */
+    public Matrix map(final DoubleUnaryOperator function, final Matrix destination) {
+        checkSize(destination);
+        for (int i = 0; i < rows; i++) {
+            final int source = index(i, 0);
+            final int target = destination.index(i, 0);
+            for (int j = 0; j < cols; j++) {
+                destination.data[target + j * destination.colStride] = function.applyAsDouble(data[source + j * colStride]);
+            }
+        }
+        return destination;
+    }
+
+    /**
+     * Combines each element with the element of another matrix at the same position, in place
+     *
+     * @param matrix   the other matrix
+     * @param function function from this and the other matrix's element to the new value
+     * @return this matrix
+     */
+    public Matrix combine(final Matrix matrix, final DoubleBinaryOperator function) {
+        return combine(matrix, function, this);
     }
 
-    private void applyToElement(final BiFunction<Integer, Integer, Double> function) {
+    /**
+     * Combines each element with the element of another matrix at the same position and writes the results into
+     * a third matrix
+     *
+     * @param matrix      the other matrix
+     * @param function    function from this and the other matrix's element to the new value
+     * @param destination the matrix to write to, may be one of the two inputs
+     * @return the destination
+     */
+    public Matrix combine(final Matrix matrix, final DoubleBinaryOperator function, final Matrix destination) {
+        checkSize(matrix);
+        checkSize(destination);
         for (int i = 0; i < rows; i++) {
+            final int source = index(i, 0);
+            final int other = matrix.index(i, 0);
+            final int target = destination.index(i, 0);
             for (int j = 0; j < cols; j++) {
-                this.data[i][j] = function.apply(i, j);
+                destination.data[target + j * destination.colStride] =
+                        function.applyAsDouble(data[source + j * colStride], matrix.data[other + j * matrix.colStride]);
             }
         }
+        return destination;
+    }
+
+    private void checkSize(final Matrix matrix) {
+        if (matrix.rows != rows || matrix.cols != cols) {
+            throw new IllegalArgumentException(String.format("Matrix size mismatch. Expected [%d][%d], was [%d][%d]", rows, cols, matrix.rows, matrix.cols));
+        }
     }
 
     /**
-     * @return the matrix's rows
+     * @return a copy of the matrix's row
      * @prarm row the row's index
      */
     public double[] getRow(final int row) {
-        return data[row];
+        final double[] rowData = new double[cols];
+        view(row, 0, 1, cols).copyTo(rowData, 0);
+        return rowData;
     }
 
     /**
@@ -340,21 +577,41 @@ public class Matrix {
     public double[] getColumn(final int column) {
         final double[] columnData = new double[rows];
         for (int i = 0; i < rows; i++) {
-            columnData[i] = data[i][column];
+            columnData[i] = get(i, column);
         }
         return columnData;
     }
 
+    /**
+     * Calculates the position of an element inside the backing array
+     *
+     * @param row the element's row
+     * @param col the element's column
+     * @return the index inside {@link #getData()}
+     */
+    public int index(final int row, final int col) {
+        return offset + row * rowStride + col * colStride;
+    }
+
     public void set(final int row, final int col, final double data) {
-        this.data[row][col] = data;
+        this.data[offset + row * rowStride + col * colStride] = data;
     }
 
     public double get(final int row, final int col) {
-        return this.data[row][col];
+        return this.data[offset + row * rowStride + col * colStride];
+    }
+
+    @Override
+    public boolean isContiguous() {
+        return colStride == 1 && rowStride == cols;
+    }
+
+    public int getRowStride() {
+        return rowStride;
     }
 
-    public double[][] getData() {
-        return data;
+    public int getColStride() {
+        return colStride;
     }
 
     public int getCols() {
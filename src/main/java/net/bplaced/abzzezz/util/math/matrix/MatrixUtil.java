@@ -1,9 +1,9 @@
 package net.bplaced.abzzezz.util.math.matrix;
 
+import net.bplaced.abzzezz.util.math.simd.ArrayMath;
+import net.bplaced.abzzezz.util.math.tensor.Init;
 import org.jetbrains.annotations.NotNull;
 
-import static net.bplaced.abzzezz.util.Const.RANDOM;
-
 public class MatrixUtil {
 
     /**
@@ -20,7 +20,7 @@ public class MatrixUtil {
             return null;
         }
 
-        final Matrix temp = new Matrix(matrix0.getRows(), matrix0.getCols());
+        final Matrix temp = Matrix.of(matrix0.getRows(), matrix0.getCols(), Init.UNINITIALIZED);
         for (int i = 0; i < matrix0.getRows(); i++) {
             for (int j = 0; j < matrix0.getCols(); j++) {
                 final double value = matrix0.get(i, j) - matrix1.get(i, j);
@@ -31,28 +31,21 @@ public class MatrixUtil {
     }
 
     /**
-     * Performs naive matrix multiplication between two matrices of shape [k][l] and [l][m]
+     * Performs matrix multiplication between two matrices of shape [k][l] and [l][m]
      *
      * @param matrix0 the first matrix
      * @param matrix1 the second matrix
-     * @return a new matrix with each element being the result of an element-wise multiplication
+     * @return a new matrix of shape [k][m]
+     * @see Gemm#multiply(Matrix, Matrix, Matrix, boolean)
      */
     public static Matrix multiplyMatrices(final Matrix matrix0, final Matrix matrix1) {
-        if (matrix0.getRows() != matrix1.getRows() || matrix0.getCols() != matrix1.getCols()) {
+        if (matrix0.getCols() != matrix1.getRows()) {
             System.err.println("Matrix size mismatch");
             return null;
         }
 
-        final Matrix temp = new Matrix(matrix0.getRows(), matrix0.getCols());
-        for (int i = 0; i < temp.getRows(); i++) {
-            for (int j = 0; j < temp.getCols(); j++) {
-                double sum = 0;
-                for (int k = 0; k < matrix0.getCols(); k++) {
-                    sum += matrix0.get(i, k) * matrix0.get(k, j);
-                }
-                temp.set(i, j, sum);
-            }
-        }
+        final Matrix temp = Matrix.of(matrix0.getRows(), matrix1.getCols(), Init.ZEROS);
+        Gemm.multiply(matrix0, matrix1, temp, true);
         return temp;
     }
 
@@ -64,15 +57,86 @@ public class MatrixUtil {
      * @return an array of matrices with random values
      */
     public static Matrix @NotNull [] initKernels(final int amount, final int matrixSize) {
+        //nxn filter matrix, scaled by the number of taps so that the maps do not grow with the kernel size
+        return initKernels(amount, matrixSize, Init.he(matrixSize * matrixSize));
+    }
+
+    /**
+     * @param amount     the number of kernels to create
+     * @param matrixSize the size of each matrix
+     * @param init       strategy to initialize the values with
+     * @return an array of matrices
+     */
+    public static Matrix @NotNull [] initKernels(final int amount, final int matrixSize, final Init init) {
         final Matrix[] matrices = new Matrix[amount];
         for (int i = 0; i < matrices.length; i++) {
-            //nxn filter matrix
-            matrices[i] = new Matrix(matrixSize, matrixSize);
-            matrices[i].randomize();
+            matrices[i] = Matrix.of(matrixSize, matrixSize, init);
+        }
+        return matrices;
+    }
+
+    /**
+     * Allocates a stack of equally sized, zero-filled matrices, e.g. the feature maps of a layer,
+     * which all share one contiguous backing array of shape [amount, rows, cols]
+     *
+     * @param amount the number of matrices
+     * @param rows   the rows of each matrix
+     * @param cols   the columns of each matrix
+     * @return the matrices, in the order in which they are laid out in memory
+     */
+    public static Matrix @NotNull [] stack(final int amount, final int rows, final int cols) {
+        final double[] data = new double[amount * rows * cols];
+        final Matrix[] matrices = new Matrix[amount];
+        for (int i = 0; i < amount; i++) {
+            matrices[i] = new Matrix(data, i * rows * cols, rows, cols);
         }
         return matrices;
     }
 
+    /**
+     * Views a stack of matrices, laid out back to back in one buffer as by {@link #stack(int, int, int)},
+     * as a single matrix, e.g. [maps][height * width] or [kernels][inputs * height * width]
+     *
+     * @param stack the stack of matrices
+     * @param rows  the view's rows
+     * @param cols  the view's columns, rows * cols must equal the total number of the stack's elements
+     * @return a matrix sharing the stack's backing array
+     */
+    public static Matrix asMatrix(final Matrix @NotNull [] stack, final int rows, final int cols) {
+        final int size = stack[0].getRows() * stack[0].getCols();
+        if (rows * cols != stack.length * size) {
+            throw new IllegalArgumentException("Matrix size mismatch. Cannot view the stack as [" + rows + "][" + cols + "]");
+        }
+        for (int i = 0; i < stack.length; i++) {
+            final Matrix matrix = stack[i];
+            if (matrix.getData() != stack[0].getData() || !matrix.isContiguous() || matrix.getOffset() != stack[0].getOffset() + i * size) {
+                throw new IllegalArgumentException("The matrices are not laid out back to back in one buffer");
+            }
+        }
+        return new Matrix(stack[0].getData(), stack[0].getOffset(), rows, cols);
+    }
+
+    /**
+     * The inverse of {@link #asMatrix(Matrix[], int, int)}: views a densely packed matrix as a stack of equally sized
+     * matrices, e.g. a batch's flattened features [samples][maps * height * width] as the maps [samples * maps][height][width]
+     *
+     * @param matrix the matrix to split
+     * @param rows   the rows of each matrix
+     * @param cols   the columns of each matrix
+     * @return matrices sharing the matrix's backing array, in the order of their values
+     */
+    public static Matrix @NotNull [] asStack(@NotNull final Matrix matrix, final int rows, final int cols) {
+        final int size = rows * cols;
+        if (!matrix.isContiguous() || (matrix.getRows() * matrix.getCols()) % size != 0) {
+            throw new IllegalArgumentException("Matrix size mismatch. Cannot split the matrix into [" + rows + "][" + cols + "] matrices");
+        }
+        final Matrix[] stack = new Matrix[matrix.getRows() * matrix.getCols() / size];
+        for (int i = 0; i < stack.length; i++) {
+            stack[i] = new Matrix(matrix.getData(), matrix.getOffset() + i * size, rows, cols);
+        }
+        return stack;
+    }
+
     /**
      * Adds two matrices together, element-wise
      *
@@ -86,7 +150,7 @@ public class MatrixUtil {
             return null;
         }
 
-        final Matrix temp = new Matrix(matrix0.getRows(), matrix0.getCols());
+        final Matrix temp = Matrix.of(matrix0.getRows(), matrix0.getCols(), Init.UNINITIALIZED);
         for (int i = 0; i < temp.getRows(); i++) {
             for (int j = 0; j < temp.getCols(); j++) {
                 final double value = matrix0.get(i, j) + matrix1.get(i, j);
@@ -103,7 +167,7 @@ public class MatrixUtil {
      * @return the new matrix
      */
     public static Matrix transpose(final Matrix matrix0) {
-        final Matrix temp = new Matrix(matrix0.getRows(), matrix0.getCols());
+        final Matrix temp = Matrix.of(matrix0.getRows(), matrix0.getCols(), Init.UNINITIALIZED);
         for (int i = 0; i < matrix0.getRows(); i++) {
             for (int j = 0; j < matrix0.getCols(); j++) {
                 temp.set(i, j, matrix0.get(i, j));
@@ -120,10 +184,8 @@ public class MatrixUtil {
      * with one colum e.g.: [  data  ]
      */
     public static Matrix from1DArray(final double[] array) {
-        final Matrix temp = new Matrix(array.length, 1);
-        for (int i = 0; i < array.length; i++) {
-            temp.set(i, 0, array[i]);
-        }
+        final Matrix temp = Matrix.of(array.length, 1, Init.UNINITIALIZED);
+        temp.copyFrom(array, 0);
         return temp;
     }
 
@@ -134,7 +196,7 @@ public class MatrixUtil {
      * @return a matrix constructed from the array of doubles
      */
     public static Matrix from2DArray(final double[][] array) {
-        final Matrix temp = new Matrix(array.length, array[0].length);
+        final Matrix temp = Matrix.of(array.length, array[0].length, Init.UNINITIALIZED);
         for (int i = 0; i < array.length; i++) {
             for (int j = 0; j < array[i].length; j++) {
                 temp.set(i, j, array[i][j]);
@@ -151,12 +213,7 @@ public class MatrixUtil {
      */
     public static double[] matrixToArray(final Matrix matrix) {
         final double[] entries = new double[matrix.getRows() * matrix.getCols()];
-
-        for (int i = 0; i < matrix.getRows(); i++) {
-            for (int j = 0; j < matrix.getCols(); j++) {
-                entries[i * matrix.getRows() + j] = matrix.get(i, j);
-            }
-        }
+        matrix.copyTo(entries, 0);
         return entries;
     }
 
@@ -165,10 +222,57 @@ public class MatrixUtil {
             System.err.println("Matrix mismatch. Cannot multiply matrices and sum the result.");
             return -1;
         }
+        final double[] d1 = m1.getData();
+        final double[] d2 = m2.getData();
+        final int c1 = m1.getColStride();
+        final int c2 = m2.getColStride();
         double sum = 0;
-        for (int i = 0; i < m1.getCols(); i++) {
-            for (int j = 0; j < m1.getRows(); j++) {
-                sum += m1.get(i, j) * m2.get(i, j);
+        for (int i = 0; i < m1.getRows(); i++) {
+            final int r1 = m1.index(i, 0);
+            final int r2 = m2.index(i, 0);
+            if (c1 == 1 && c2 == 1) {
+                sum += ArrayMath.dot(d1, r1, d2, r2, m1.getCols());
+            } else {
+                for (int j = 0; j < m1.getCols(); j++) {
+                    sum += d1[r1 + j * c1] * d2[r2 + j * c2];
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the sum of a kernel multiplied element-wise with the equally sized window of a matrix, whose top left
+     * corner is at (row, col). The window is read in place, positions outside the matrix count as zeros,
+     * which is the same as convolving a zero-padded copy without ever allocating it
+     *
+     * @param matrix the matrix to read the window from
+     * @param row    the window's first row, may be negative
+     * @param col    the window's first column, may be negative
+     * @param kernel the kernel to multiply with
+     * @return the sum of the element-wise products
+     */
+    public static double sumAndMultiply(final Matrix matrix, final int row, final int col, final Matrix kernel) {
+        //Clip the kernel to the part which overlaps the matrix
+        final int startRow = Math.max(0, -row);
+        final int endRow = Math.min(kernel.getRows(), matrix.getRows() - row);
+        final int startCol = Math.max(0, -col);
+        final int endCol = Math.min(kernel.getCols(), matrix.getCols() - col);
+
+        final double[] m = matrix.getData();
+        final double[] k = kernel.getData();
+        final int mc = matrix.getColStride();
+        final int kc = kernel.getColStride();
+        double sum = 0;
+        for (int i = startRow; i < endRow; i++) {
+            final int mRow = matrix.index(row + i, col);
+            final int kRow = kernel.index(i, 0);
+            if (mc == 1 && kc == 1) {
+                sum += ArrayMath.dot(m, mRow + startCol, k, kRow + startCol, endCol - startCol);
+            } else {
+                for (int j = startCol; j < endCol; j++) {
+                    sum += m[mRow + j * mc] * k[kRow + j * kc];
+                }
             }
         }
         return sum;
@@ -182,14 +286,20 @@ public class MatrixUtil {
      * @return the initialized matrix
      */
     public static Matrix initializeWeightMatrix(final Matrix matrix, final int inputs) {
-        final Matrix temp = new Matrix(matrix.getRows(), matrix.getCols());
-        for (int i = 0; i < matrix.getRows(); i++) {
-            for (int j = 0; j < matrix.getCols(); j++) {
-                final double value = RANDOM.nextGaussian(0, Math.sqrt(2. / inputs));
-                temp.set(i, j, value);
-            }
-        }
-        return temp;
+        return Matrix.of(matrix.getRows(), matrix.getCols(), Init.he(inputs));
+    }
+
+    /**
+     * Allocates a new weight matrix with values which are optimal for the relu activation function
+     *
+     * @param rows   the number of neurons
+     * @param cols   the number of weights per neuron
+     * @param inputs the number of inputs feeding into each neuron
+     * @return the initialized matrix
+     * @see Init#he(int)
+     */
+    public static Matrix initializeWeightMatrix(final int rows, final int cols, final int inputs) {
+        return Matrix.of(rows, cols, Init.he(inputs));
     }
 
     /**
@@ -0,0 +1,66 @@
+package net.bplaced.abzzezz.util.math.simd;
+
+/**
+ * Entry point for the vectorizable loops. On start-up the SIMD implementation is chosen if the JVM was started
+ * with {@code --add-modules jdk.incubator.vector}, otherwise the scalar loops are used.
+ * The SIMD class is only loaded reflectively, so a JVM without the module never touches the vector API
+ */
+public class ArrayMath {
+
+    private static final ArrayOps OPS = load();
+
+    private static ArrayOps load() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (ArrayOps) Class.forName("net.bplaced.abzzezz.util.math.simd.VectorArrayOps")
+                        .getDeclaredConstructor()
+                        .newInstance();
+            } catch (final ReflectiveOperationException | LinkageError e) {
+                System.err.println("Vector API unavailable, falling back to scalar loops: " + e);
+            }
+        }
+        return new ScalarArrayOps();
+    }
+
+    /**
+     * @return true if the SIMD implementation is in use
+     */
+    public static boolean isVectorized() {
+        return !(OPS instanceof ScalarArrayOps);
+    }
+
+    /**
+     * @see ArrayOps#dot(double[], int, double[], int, int)
+     */
+    public static double dot(final double[] a, final int aOffset, final double[] b, final int bOffset, final int length) {
+        return OPS.dot(a, aOffset, b, bOffset, length);
+    }
+
+    /**
+     * @see ArrayOps#axpy(double, double[], int, double[], int, int)
+     */
+    public static void axpy(final double factor, final double[] x, final int xOffset, final double[] y, final int yOffset, final int length) {
+        OPS.axpy(factor, x, xOffset, y, yOffset, length);
+    }
+
+    /**
+     * @see ArrayOps#add(double[], int, double[], int, int)
+     */
+    public static void add(final double[] a, final int aOffset, final double[] b, final int bOffset, final int length) {
+        OPS.add(a, aOffset, b, bOffset, length);
+    }
+
+    /**
+     * @see ArrayOps#multiply(double[], int, double[], int, int)
+     */
+    public static void multiply(final double[] a, final int aOffset, final double[] b, final int bOffset, final int length) {
+        OPS.multiply(a, aOffset, b, bOffset, length);
+    }
+
+    /**
+     * @see ArrayOps#max(double[], int, int)
+     */
+    public static double max(final double[] a, final int offset, final int length) {
+        return OPS.max(a, offset, length);
+    }
+}
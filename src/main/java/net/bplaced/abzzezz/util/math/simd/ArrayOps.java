@@ -0,0 +1,35 @@
+package net.bplaced.abzzezz.util.math.simd;
+
+/**
+ * The innermost loops of the network on runs of densely packed values.
+ * Every run is given by an array, the index of its first value and its length
+ *
+ * @see ArrayMath
+ */
+public interface ArrayOps {
+
+    /**
+     * @return Σ a[i] * b[i]
+     */
+    double dot(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    /**
+     * y[i] += factor * x[i]
+     */
+    void axpy(double factor, double[] x, int xOffset, double[] y, int yOffset, int length);
+
+    /**
+     * a[i] += b[i]
+     */
+    void add(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    /**
+     * a[i] *= b[i]
+     */
+    void multiply(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    /**
+     * @return the largest value of a non-empty run
+     */
+    double max(double[] a, int offset, int length);
+}
@@ -0,0 +1,54 @@
+package net.bplaced.abzzezz.util.math.simd;
+
+/**
+ * Plain loops, used whenever the vector API is not available. Left to the JIT's auto-vectorization
+ */
+public class ScalarArrayOps implements ArrayOps {
+
+    @Override
+    public double dot(final double[] a, final int aOffset, final double[] b, final int bOffset, final int length) {
+        //Four independent partial sums hide the latency of the additions
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < length; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < length; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public void axpy(final double factor, final double[] x, final int xOffset, final double[] y, final int yOffset, final int length) {
+        for (int i = 0; i < length; i++) {
+            y[yOffset + i] += factor * x[xOffset + i];
+        }
+    }
+
+    @Override
+    public void add(final double[] a, final int aOffset, final double[] b, final int bOffset, final int length) {
+        for (int i = 0; i < length; i++) {
+            a[aOffset + i] += b[bOffset + i];
+        }
+    }
+
+    @Override
+    public void multiply(final double[] a, final int aOffset, final double[] b, final int bOffset, final int length) {
+        for (int i = 0; i < length; i++) {
+            a[aOffset + i] *= b[bOffset + i];
+        }
+    }
+
+    @Override
+    public double max(final double[] a, final int offset, final int length) {
+        double max = a[offset];
+        for (int i = 1; i < length; i++) {
+            max = Math.max(max, a[offset + i]);
+        }
+        return max;
+    }
+}
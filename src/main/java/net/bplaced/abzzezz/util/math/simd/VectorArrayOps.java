@@ -0,0 +1,94 @@
+package net.bplaced.abzzezz.util.math.simd;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD loops on top of the incubating vector API, one register of the platform's preferred width at a time.
+ * The remainder of a run which does not fill a whole register is handled by a scalar tail.
+ * <p>
+ * This class must only be loaded if the module jdk.incubator.vector is resolved, see {@link ArrayMath}
+ */
+public class VectorArrayOps implements ArrayOps {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public double dot(final double[] a, final int aOffset, final double[] b, final int bOffset, final int length) {
+        final int bound = SPECIES.loopBound(length);
+        DoubleVector sum = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            final DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOffset + i);
+            final DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOffset + i);
+            sum = va.fma(vb, sum);
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            result += a[aOffset + i] * b[bOffset + i];
+        }
+        return result;
+    }
+
+    @Override
+    public void axpy(final double factor, final double[] x, final int xOffset, final double[] y, final int yOffset, final int length) {
+        final int bound = SPECIES.loopBound(length);
+        final DoubleVector f = DoubleVector.broadcast(SPECIES, factor);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            final DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xOffset + i);
+            final DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yOffset + i);
+            vx.fma(f, vy).intoArray(y, yOffset + i);
+        }
+        for (; i < length; i++) {
+            y[yOffset + i] += factor * x[xOffset + i];
+        }
+    }
+
+    @Override
+    public void add(final double[] a, final int aOffset, final double[] b, final int bOffset, final int length) {
+        final int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            final DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOffset + i);
+            final DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOffset + i);
+            va.add(vb).intoArray(a, aOffset + i);
+        }
+        for (; i < length; i++) {
+            a[aOffset + i] += b[bOffset + i];
+        }
+    }
+
+    @Override
+    public void multiply(final double[] a, final int aOffset, final double[] b, final int bOffset, final int length) {
+        final int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            final DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOffset + i);
+            final DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOffset + i);
+            va.mul(vb).intoArray(a, aOffset + i);
+        }
+        for (; i < length; i++) {
+            a[aOffset + i] *= b[bOffset + i];
+        }
+    }
+
+    @Override
+    public double max(final double[] a, final int offset, final int length) {
+        final int bound = SPECIES.loopBound(length);
+        double result = a[offset];
+        int i = 0;
+        if (bound > 0) {
+            DoubleVector max = DoubleVector.fromArray(SPECIES, a, offset);
+            for (i = SPECIES.length(); i < bound; i += SPECIES.length()) {
+                max = max.max(DoubleVector.fromArray(SPECIES, a, offset + i));
+            }
+            result = max.reduceLanes(VectorOperators.MAX);
+        }
+        for (; i < length; i++) {
+            result = Math.max(result, a[offset + i]);
+        }
+        return result;
+    }
+}
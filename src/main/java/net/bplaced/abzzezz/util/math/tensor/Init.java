@@ -0,0 +1,80 @@
+package net.bplaced.abzzezz.util.math.tensor;
+
+import java.util.Arrays;
+
+import static net.bplaced.abzzezz.util.Const.RANDOM;
+
+/**
+ * Strategy used to fill a freshly created tensor.
+ * Only weights should ever be created with a random strategy, temporaries which are overwritten anyway should use
+ * {@link #UNINITIALIZED}, so that the hot path never draws random numbers
+ */
+@FunctionalInterface
+public interface Init {
+
+    /**
+     * Leaves the values as they are. A freshly allocated array is all zeros,
+     * a buffer handed out by a {@link Workspace} still holds the values of its last use
+     */
+    Init UNINITIALIZED = (data, offset, length) -> {
+    };
+
+    /**
+     * Sets every value to 0
+     */
+    Init ZEROS = (data, offset, length) -> Arrays.fill(data, offset, offset + length, 0);
+
+    /**
+     * Draws every value from the standard normal distribution
+     */
+    Init GAUSSIAN = gaussian(0, 1);
+
+    /**
+     * Draws every value uniformly from [0, 1)
+     */
+    Init UNIFORM = (data, offset, length) -> {
+        for (int i = offset; i < offset + length; i++) {
+            data[i] = RANDOM.nextDouble();
+        }
+    };
+
+    /**
+     * Fills a region of a backing array
+     *
+     * @param data   the backing array
+     * @param offset index of the first value to fill
+     * @param length the number of values to fill
+     */
+    void initialize(double[] data, int offset, int length);
+
+    /**
+     * @param value the value to fill with
+     * @return a strategy setting every value to the given value
+     */
+    static Init fill(final double value) {
+        return (data, offset, length) -> Arrays.fill(data, offset, offset + length, value);
+    }
+
+    /**
+     * @param mean              the distribution's mean
+     * @param standardDeviation the distribution's standard deviation
+     * @return a strategy drawing every value from a normal distribution
+     */
+    static Init gaussian(final double mean, final double standardDeviation) {
+        return (data, offset, length) -> {
+            for (int i = offset; i < offset + length; i++) {
+                data[i] = RANDOM.nextGaussian(mean, standardDeviation);
+            }
+        };
+    }
+
+    /**
+     * He initialization, which is optimal for the relu activation function: N(0, sqrt(2 / inputs))
+     *
+     * @param inputs the number of inputs feeding into each neuron
+     * @return a strategy drawing the weights of a layer with the given number of inputs
+     */
+    static Init he(final int inputs) {
+        return gaussian(0, Math.sqrt(2. / inputs));
+    }
+}
@@ -0,0 +1,150 @@
+package net.bplaced.abzzezz.util.math.tensor;
+
+import java.util.Arrays;
+
+/**
+ * Flat storage shared by every matrix, vector and stack of feature maps.
+ * All values of a tensor live in one contiguous primitive array and are addressed row-major through explicit strides:
+ * the element at [i0, i1, ..., in] is found at offset + i0 * stride[0] + i1 * stride[1] + ... + in * stride[n]
+ * <p>
+ * A 3x2 matrix is therefore stored as
+ * [a, b, c, d, e, f] with shape [3, 2] and strides [2, 1]
+ */
+public class Tensor {
+
+    /**
+     * The backing array, which may be shared with other tensors
+     */
+    protected final double[] data;
+    /**
+     * Index of the first element inside the backing array
+     */
+    protected final int offset;
+    /**
+     * Size of each dimension
+     */
+    protected final int[] shape;
+    /**
+     * Distance in the backing array between two neighbouring elements of each dimension
+     */
+    protected final int[] strides;
+
+    /**
+     * Allocates a new, zero-filled, contiguous tensor of a given shape
+     *
+     * @param shape the size of each dimension
+     */
+    public Tensor(final int... shape) {
+        this(new double[volume(shape)], 0, shape.clone(), rowMajorStrides(shape));
+    }
+
+    /**
+     * Creates a tensor on top of an existing backing array
+     *
+     * @param data    the backing array
+     * @param offset  index of the first element
+     * @param shape   the size of each dimension
+     * @param strides the strides of each dimension
+     */
+    protected Tensor(final double[] data, final int offset, final int[] shape, final int[] strides) {
+        if (shape.length != strides.length) {
+            throw new IllegalArgumentException("Shape and strides must have the same rank");
+        }
+        this.data = data;
+        this.offset = offset;
+        this.shape = shape;
+        this.strides = strides;
+    }
+
+    /**
+     * Calculates the number of elements of a given shape
+     *
+     * @param shape the size of each dimension
+     * @return the product of all dimensions
+     */
+    public static int volume(final int... shape) {
+        int volume = 1;
+        for (final int dimension : shape) {
+            volume *= dimension;
+        }
+        return volume;
+    }
+
+    /**
+     * Calculates the strides of a densely packed, row-major tensor
+     * e.g. the shape [5, 64, 64] results in the strides [4096, 64, 1]
+     *
+     * @param shape the size of each dimension
+     * @return the strides for each dimension
+     */
+    public static int[] rowMajorStrides(final int... shape) {
+        final int[] strides = new int[shape.length];
+        int stride = 1;
+        for (int i = shape.length - 1; i >= 0; i--) {
+            strides[i] = stride;
+            stride *= shape[i];
+        }
+        return strides;
+    }
+
+    /**
+     * @return true if the elements occupy one dense, row-major block of the backing array
+     */
+    public boolean isContiguous() {
+        return Arrays.equals(strides, rowMajorStrides(shape));
+    }
+
+    /**
+     * @return the number of dimensions
+     */
+    public int rank() {
+        return shape.length;
+    }
+
+    /**
+     * @return the total number of elements
+     */
+    public int size() {
+        return volume(shape);
+    }
+
+    /**
+     * @param dimension the dimension's index
+     * @return the size of the dimension
+     */
+    public int shape(final int dimension) {
+        return shape[dimension];
+    }
+
+    /**
+     * @param dimension the dimension's index
+     * @return the stride of the dimension
+     */
+    public int stride(final int dimension) {
+        return strides[dimension];
+    }
+
+    /**
+     * @return a copy of the tensor's shape
+     */
+    public int[] getShape() {
+        return shape.clone();
+    }
+
+    /**
+     * Direct access to the backing array, used by the hot loops of the network.
+     * Elements have to be addressed through {@link #getOffset()} and {@link #stride(int)}
+     *
+     * @return the backing array
+     */
+    public double[] getData() {
+        return data;
+    }
+
+    /**
+     * @return index of the first element inside the backing array
+     */
+    public int getOffset() {
+        return offset;
+    }
+}
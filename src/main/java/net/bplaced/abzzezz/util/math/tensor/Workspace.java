@@ -0,0 +1,75 @@
+package net.bplaced.abzzezz.util.math.tensor;
+
+import net.bplaced.abzzezz.util.math.matrix.Matrix;
+import net.bplaced.abzzezz.util.math.matrix.MatrixUtil;
+import net.bplaced.abzzezz.util.math.vector.Vec;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out named buffers which are reused between training steps.
+ * The first request for a name allocates, every following request with the same shape returns the same matrix,
+ * vector or stack again, re-initialized with the requested strategy. A request with a different shape replaces the buffer.
+ * <p>
+ * Everything returned by a workspace is only valid until the next request for the same name,
+ * a workspace must therefore never be shared between threads
+ */
+public class Workspace {
+
+    private final Map<String, Matrix> matrices = new HashMap<>();
+    private final Map<String, Matrix[]> stacks = new HashMap<>();
+    private final Map<String, Vec> vectors = new HashMap<>();
+
+    /**
+     * @param name the buffer's name
+     * @param rows the matrix's rows
+     * @param cols the matrix's columns
+     * @param init strategy to initialize the values with
+     * @return a matrix of the given size, reused between calls
+     */
+    public Matrix matrix(final String name, final int rows, final int cols, final Init init) {
+        Matrix matrix = matrices.get(name);
+        if (matrix == null || matrix.getRows() != rows || matrix.getCols() != cols) {
+            matrix = new Matrix(new double[rows * cols], 0, rows, cols);
+            matrices.put(name, matrix);
+        }
+        init.initialize(matrix.getData(), 0, rows * cols);
+        return matrix;
+    }
+
+    /**
+     * @param name   the buffer's name
+     * @param amount the number of matrices
+     * @param rows   the rows of each matrix
+     * @param cols   the columns of each matrix
+     * @param init   strategy to initialize the values with
+     * @return equally sized matrices sharing one contiguous buffer, reused between calls
+     * @see MatrixUtil#stack(int, int, int)
+     */
+    public Matrix[] stack(final String name, final int amount, final int rows, final int cols, final Init init) {
+        Matrix[] stack = stacks.get(name);
+        if (stack == null || stack.length != amount || stack[0].getRows() != rows || stack[0].getCols() != cols) {
+            stack = MatrixUtil.stack(amount, rows, cols);
+            stacks.put(name, stack);
+        }
+        init.initialize(stack[0].getData(), 0, amount * rows * cols);
+        return stack;
+    }
+
+    /**
+     * @param name   the buffer's name
+     * @param length the vector's length
+     * @param init   strategy to initialize the values with
+     * @return a vector of the given length, reused between calls
+     */
+    public Vec vec(final String name, final int length, final Init init) {
+        Vec vec = vectors.get(name);
+        if (vec == null || vec.length() != length) {
+            vec = new Vec(new double[length]);
+            vectors.put(name, vec);
+        }
+        init.initialize(vec.getData(), 0, length);
+        return vec;
+    }
+}
@@ -1,19 +1,26 @@
 package net.bplaced.abzzezz.util.math.vector;
 
 import net.bplaced.abzzezz.util.math.MathUtil;
+import net.bplaced.abzzezz.util.math.function.IndexedDoubleOperator;
 import net.bplaced.abzzezz.util.math.matrix.Matrix;
+import net.bplaced.abzzezz.util.math.simd.ArrayMath;
+import net.bplaced.abzzezz.util.math.tensor.Init;
+import net.bplaced.abzzezz.util.math.tensor.Tensor;
 
 import java.util.Arrays;
-import java.util.function.BiFunction;
-import java.util.function.Function;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
 import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
 
-public class Vec {
+public class Vec extends Tensor {
     /**
-     * Array representing the vectors internal data,
-     * which may be manipulated, however the vector is of fixed length
+     * The vector's elements live in the flat backing array {@link #data},
+     * which may be manipulated, however the vector is of fixed length.
+     * The element i is found at offset + i * stride
      */
-    private final double[] data;
+    private final int length;
+    private final int stride;
 
     /**
      * Creates a new vector of length η with random values
@@ -21,8 +28,8 @@ public class Vec {
      * @param length the new vector's length
      */
     public Vec(final int length) {
-        this.data = new double[length];
-        this.randomize();
+        this(new double[length], 0, length);
+        Init.UNIFORM.initialize(data, 0, length);
     }
 
     /**
@@ -32,8 +39,25 @@ public class Vec {
      * @param preMadeValue the value to fill the vector with e.g. 0
      */
     public Vec(final int length, final double preMadeValue) {
-        this.data = new double[length];
-        this.applyToElement((integer, aDouble) -> preMadeValue);
+        this(new double[length], 0, length);
+        Init.fill(preMadeValue).initialize(data, 0, length);
+    }
+
+    /**
+     * Allocates a new vector with an explicit initialization strategy.
+     * Temporaries which are overwritten anyway should be created with {@link Init#UNINITIALIZED}
+     *
+     * @param length the vector's length
+     * @param init   strategy to fill the vector with
+     * @return the new vector
+     */
+    public static Vec of(final int length, final Init init) {
+        final Vec vec = new Vec(new double[length]);
+        //A fresh array is already all zeros
+        if (init != Init.ZEROS) {
+            init.initialize(vec.data, 0, length);
+        }
+        return vec;
     }
 
     /**
@@ -42,7 +66,32 @@ public class Vec {
      * @param data the array of values
      */
     public Vec(final double[] data) {
-        this.data = data;
+        this(data, 0, data.length);
+    }
+
+    /**
+     * Creates a vector on top of a densely packed region of a backing array, no values are copied
+     *
+     * @param data   the backing array
+     * @param offset index of the vector's first element
+     * @param length the vector's length
+     */
+    public Vec(final double[] data, final int offset, final int length) {
+        this(data, offset, length, 1);
+    }
+
+    /**
+     * Creates a strided view on top of a backing array, e.g. a column of a matrix, no values are copied
+     *
+     * @param data   the backing array
+     * @param offset index of the vector's first element
+     * @param length the vector's length
+     * @param stride distance between two neighbouring elements
+     */
+    public Vec(final double[] data, final int offset, final int length, final int stride) {
+        super(data, offset, new int[]{length}, new int[]{stride});
+        this.length = length;
+        this.stride = stride;
     }
 
     /**
@@ -56,6 +105,10 @@ public class Vec {
      * Fills the vector with the value 0
      */
     public void zeros() {
+        if (stride == 1) {
+            Arrays.fill(data, offset, offset + length, 0);
+            return;
+        }
         this.applyToElement(value -> 0.);
     }
 
@@ -78,6 +131,10 @@ public class Vec {
             System.err.println("Vector length mismatch. Cannot add vectors.");
             return;
         }
+        if (stride == 1 && vector.stride == 1) {
+            ArrayMath.add(data, offset, vector.data, vector.offset, length);
+            return;
+        }
         this.applyToElement((index, value) -> value + vector.get(index));
     }
 
@@ -88,7 +145,13 @@ public class Vec {
      * @param vector the vector to copy the values from
      */
     public void copyFromVector(final Vec vector) {
-        System.arraycopy(vector.data, 0, data, 0, vector.length());
+        if (stride == 1 && vector.stride == 1) {
+            System.arraycopy(vector.data, vector.offset, data, offset, vector.length());
+            return;
+        }
+        for (int i = 0; i < vector.length(); i++) {
+            set(i, vector.get(i));
+        }
     }
 
 
@@ -121,6 +184,10 @@ public class Vec {
             System.err.println("Vector length mismatch.");
             return;
         }
+        if (stride == 1 && vector.stride == 1) {
+            ArrayMath.multiply(data, offset, vector.data, vector.offset, length);
+            return;
+        }
         this.applyToElement((index, value) -> value * vector.get(index));
     }
 
@@ -128,9 +195,12 @@ public class Vec {
      * @return the vector's max value
      */
     public double max() {
-        double max = data[0];
-        for (final double v : data) {
-            max = Math.max(max, v);
+        if (stride == 1) {
+            return ArrayMath.max(data, offset, length);
+        }
+        double max = data[offset];
+        for (int i = 0; i < length; i++) {
+            max = Math.max(max, data[offset + i * stride]);
         }
         return max;
     }
@@ -169,9 +239,9 @@ public class Vec {
      * @return a matrix of size η * 1
      */
     public Matrix toMatrix() {
-        final Matrix matrix = new Matrix(length(), 1);
-        for (int i = 0; i < matrix.getRows(); i++) {
-            matrix.set(i, 0, get(i));
+        final Matrix matrix = Matrix.of(length(), 1, Init.UNINITIALIZED);
+        for (int i = 0; i < length; i++) {
+            matrix.getData()[matrix.index(i, 0)] = get(i);
         }
         return matrix;
     }
@@ -182,8 +252,8 @@ public class Vec {
      * @see Matrix#print for a similar implementation
      */
     public void print() {
-        for (final double d : data) {
-            System.out.printf("[ %f ]%n", d);
+        for (int i = 0; i < length; i++) {
+            System.out.printf("[ %f ]%n", get(i));
         }
     }
 
@@ -193,22 +263,87 @@ public class Vec {
      * @return the total sum of all values
      */
     public double sum() {
-        return Arrays.stream(data).sum();
+        double sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += data[offset + i * stride];
+        }
+        return sum;
     }
 
     public void exp() {
         this.applyToElement(Math::exp);
     }
 
-    public void applyToElement(final Function<Double, Double> doubleDoubleFunction) {
-        for (int i = 0; i < data.length; i++) {
-            data[i] = doubleDoubleFunction.apply(data[i]);
+    /**
+     * Applies a given function to each element, in place
+     *
+     * @param function function from the element's value to its new value
+     */
+    public void applyToElement(final DoubleUnaryOperator function) {
+        for (int i = 0; i < length; i++) {
+            final int index = offset + i * stride;
+            data[index] = function.applyAsDouble(data[index]);
+        }
+    }
+
+    /**
+     * Applies a given function to each element, in place, the function is also given the element's index
+     *
+     * @param function function from the element's index and value to its new value
+     */
+    public void applyToElement(final IndexedDoubleOperator function) {
+        for (int i = 0; i < length; i++) {
+            final int index = offset + i * stride;
+            data[index] = function.applyAsDouble(i, data[index]);
         }
     }
 
-    public void applyToElement(final BiFunction<Integer, Double, Double> doubleDoubleFunction) {
-        for (int i = 0; i < data.length; i++) {
-            data[i] = doubleDoubleFunction.apply(i, data[i]);
+    /**
+     * Applies a given function to each element and writes the results into another vector of the same length
+     *
+     * @param function    the function to apply
+     * @param destination the vector to write to, may be this vector
+     * @return the destination
+     */
+    public Vec map(final DoubleUnaryOperator function, final Vec destination) {
+        checkLength(destination);
+        for (int i = 0; i < length; i++) {
+            destination.data[destination.offset + i * destination.stride] = function.applyAsDouble(data[offset + i * stride]);
+        }
+        return destination;
+    }
+
+    /**
+     * Combines each element with the other vector's element at the same index, in place
+     *
+     * @param vector   the other vector
+     * @param function function from this and the other vector's element to the new value
+     */
+    public void combine(final Vec vector, final DoubleBinaryOperator function) {
+        combine(vector, function, this);
+    }
+
+    /**
+     * Combines each element with the other vector's element at the same index and writes the results into a third vector
+     *
+     * @param vector      the other vector
+     * @param function    function from this and the other vector's element to the new value
+     * @param destination the vector to write to, may be one of the two inputs
+     * @return the destination
+     */
+    public Vec combine(final Vec vector, final DoubleBinaryOperator function, final Vec destination) {
+        checkLength(vector);
+        checkLength(destination);
+        for (int i = 0; i < length; i++) {
+            destination.data[destination.offset + i * destination.stride] =
+                    function.applyAsDouble(data[offset + i * stride], vector.data[vector.offset + i * vector.stride]);
+        }
+        return destination;
+    }
+
+    private void checkLength(final Vec vector) {
+        if (vector.length != length) {
+            throw new IllegalArgumentException(String.format("Vector length mismatch. Expected %d, was %d", length, vector.length));
         }
     }
 
@@ -218,7 +353,7 @@ public class Vec {
      * @return stream from the data array
      */
     public DoubleStream stream() {
-        return DoubleStream.of(data);
+        return IntStream.range(0, length).mapToDouble(this::get);
     }
 
     /**
@@ -228,15 +363,19 @@ public class Vec {
      * @param value value to set
      */
     public void set(final int index, final double value) {
-        this.data[index] = value;
+        this.data[offset + index * stride] = value;
     }
 
     public double get(final int index) {
-        return data[index];
+        return data[offset + index * stride];
     }
 
     public int length() {
-        return data.length;
+        return length;
+    }
+
+    public int getStride() {
+        return stride;
     }
 
     public boolean matches(Vec expectedResult) {